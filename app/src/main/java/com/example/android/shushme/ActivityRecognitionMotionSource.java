@@ -0,0 +1,94 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.ActivityRecognition;
+import com.google.android.gms.location.ActivityRecognitionResult;
+import com.google.android.gms.location.DetectedActivity;
+
+/**
+ * Motion state source backed by the activity recognition of Google Play Services.
+ * <p>
+ * The detected activities are delivered to {@link MotionStateReceiver}, which keeps working
+ * while the app is not running. The client must have been built with
+ * {@link ActivityRecognition#API} and be connected.
+ */
+public class ActivityRecognitionMotionSource implements MotionStateSource {
+
+    // Constants
+    public static final String TAG = ActivityRecognitionMotionSource.class.getSimpleName();
+    // Detections less certain than this are ignored rather than flip the state back and forth
+    private static final int MIN_CONFIDENCE = 60; // percent
+
+    private final Context mContext;
+    private final GoogleApiClient mClient;
+
+    public ActivityRecognitionMotionSource(Context context, GoogleApiClient client) {
+        mContext = context.getApplicationContext();
+        mClient = client;
+    }
+
+    @Override
+    public void start(long intervalMillis) {
+        if (!mClient.isConnected()) return;
+        ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(
+                mClient, intervalMillis, getPendingIntent());
+    }
+
+    @Override
+    public void stop() {
+        if (!mClient.isConnected()) return;
+        ActivityRecognition.ActivityRecognitionApi.removeActivityUpdates(mClient, getPendingIntent());
+    }
+
+    /**
+     * Maps the most probable detected activity to a motion state
+     *
+     * @param result The activity recognition result
+     * @return The motion state, or STATE_UNKNOWN if the detection is not certain enough
+     */
+    static int toMotionState(ActivityRecognitionResult result) {
+        DetectedActivity activity = result.getMostProbableActivity();
+        if (activity.getConfidence() < MIN_CONFIDENCE) return STATE_UNKNOWN;
+        switch (activity.getType()) {
+            case DetectedActivity.STILL:
+                return STATE_STILL;
+            case DetectedActivity.ON_FOOT:
+            case DetectedActivity.WALKING:
+            case DetectedActivity.RUNNING:
+            // Cycling is slow enough to be treated like walking
+            case DetectedActivity.ON_BICYCLE:
+                return STATE_ON_FOOT;
+            case DetectedActivity.IN_VEHICLE:
+                return STATE_IN_VEHICLE;
+            default:
+                Log.d(TAG, String.format("Ignoring activity : %d", activity.getType()));
+                return STATE_UNKNOWN;
+        }
+    }
+
+    private PendingIntent getPendingIntent() {
+        Intent intent = new Intent(mContext, MotionStateReceiver.class);
+        return PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.location.Location;
+
+import com.example.android.shushme.provider.PlaceContract;
+
+/**
+ * Adapts how closely the geofences are monitored to the way the user moves.
+ * <p>
+ * While the user is still, alerts may come late, and when no place is nearby the geofences are
+ * removed altogether until the user moves again. Since geofences are registered with an initial
+ * enter trigger, a place reached in the meantime is still entered once they come back. While on
+ * foot near a place, alerts are asked for as soon as possible. The motion state and the mode
+ * derived from it are kept in SharedPreferences, so that {@link Geofencing} builds the geofences
+ * with the current mode in any process.
+ */
+public class AdaptiveMonitor implements MotionStateSource.Listener {
+
+    // Constants
+    public static final String TAG = AdaptiveMonitor.class.getSimpleName();
+    // Places closer than this count as nearby
+    static final float NEAR_DISTANCE = 2000; // 2 km
+
+    private static final String PREFERENCES_NAME = "adaptive_monitoring";
+    private static final String KEY_ACTIVE = "active";
+    private static final String KEY_MOTION_STATE = "motion_state";
+    private static final String KEY_SUSPENDED = "suspended";
+    private static final String KEY_RESPONSIVENESS = "responsiveness";
+    private static final String KEY_ACTIVITY_INTERVAL = "activity_interval";
+
+    /**
+     * How the geofences are monitored
+     */
+    public static final class Mode {
+        // The mode before any motion state is known, the same as before adapting
+        public static final Mode DEFAULT = new Mode(false, 0, 60 * 1000);
+
+        // true to remove all the geofences
+        public final boolean suspended;
+        // Passed to Geofence.Builder#setNotificationResponsiveness
+        public final int responsivenessMillis;
+        // How often to detect the motion state
+        public final long activityIntervalMillis;
+
+        public Mode(boolean suspended, int responsivenessMillis, long activityIntervalMillis) {
+            this.suspended = suspended;
+            this.responsivenessMillis = responsivenessMillis;
+            this.activityIntervalMillis = activityIntervalMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Mode)) return false;
+            Mode other = (Mode) o;
+            return suspended == other.suspended &&
+                    responsivenessMillis == other.responsivenessMillis &&
+                    activityIntervalMillis == other.activityIntervalMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (activityIntervalMillis * 31 + responsivenessMillis) * 2 + (suspended ? 1 : 0);
+        }
+    }
+
+    /**
+     * Registers every geofence again, in the current mode
+     */
+    public interface Registrar {
+        void registerAllGeofences();
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    public AdaptiveMonitor(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Picks the monitoring mode for a motion state
+     *
+     * @param state              One of the MotionStateSource STATE_ constants
+     * @param nearestPlaceMeters Distance to the nearest place, negative if not known
+     * @return The mode to monitor the geofences in
+     */
+    public static Mode decide(int state, float nearestPlaceMeters) {
+        // Without a location, assume a place may be nearby
+        boolean near = nearestPlaceMeters < NEAR_DISTANCE;
+        switch (state) {
+            case MotionStateSource.STATE_STILL:
+                // Nothing can be entered far from every place without moving first
+                if (!near) return new Mode(true, 0, 3 * 60 * 1000);
+                return new Mode(false, 5 * 60 * 1000, 3 * 60 * 1000);
+            case MotionStateSource.STATE_ON_FOOT:
+                if (near) return new Mode(false, 0, 30 * 1000);
+                return new Mode(false, 2 * 60 * 1000, 60 * 1000);
+            case MotionStateSource.STATE_IN_VEHICLE:
+                // Places go by quickly, but alerts in a vehicle rarely matter before it stops
+                return new Mode(false, 60 * 1000, 60 * 1000);
+            default:
+                return Mode.DEFAULT;
+        }
+    }
+
+    /**
+     * Tells whether switching modes changes how the geofences are monitored, which is fixed
+     * when they are added
+     *
+     * @param oldMode The mode the geofences are registered with
+     * @param mode    The new mode
+     * @return true if the geofences must be registered again
+     */
+    public static boolean needsRegistration(Mode oldMode, Mode mode) {
+        return mode.suspended != oldMode.suspended ||
+                mode.responsivenessMillis != oldMode.responsivenessMillis;
+    }
+
+    /**
+     * Stores the new state and has {@link GeofenceScheduleService} adapt the geofences to it
+     *
+     * @param state One of the MotionStateSource STATE_ constants
+     */
+    @Override
+    public void onMotionStateChanged(int state) {
+        // Updates may still trickle in after monitoring stopped
+        if (!mPreferences.getBoolean(KEY_ACTIVE, false)) return;
+        if (state == getMotionState()) return;
+        mPreferences.edit().putInt(KEY_MOTION_STATE, state).apply();
+        Intent intent = new Intent(mContext, GeofenceScheduleService.class);
+        intent.setAction(GeofenceScheduleService.ACTION_MOTION_CHANGED);
+        mContext.startService(intent);
+    }
+
+    /**
+     * Switches to the monitoring mode for the current motion state. The geofences are registered
+     * again only when the mode changes how they are monitored, since their responsiveness is
+     * fixed when they are added. Called by {@link GeofenceScheduleService} once the state changed.
+     *
+     * @param nearestPlaceMeters Distance to the nearest place, negative if not known
+     * @param registrar          Registers the geofences again
+     * @param source             The source of the motion states, started again at the interval
+     *                           of the new mode
+     * @return The new mode, or null if the mode did not change
+     */
+    public Mode adapt(float nearestPlaceMeters, Registrar registrar, MotionStateSource source) {
+        Mode oldMode = getMode();
+        Mode mode = decide(getMotionState(), nearestPlaceMeters);
+        if (mode.equals(oldMode)) return null;
+        setMode(mode);
+
+        if (needsRegistration(oldMode, mode)) registrar.registerAllGeofences();
+        if (mode.activityIntervalMillis != oldMode.activityIntervalMillis) {
+            source.start(mode.activityIntervalMillis);
+        }
+        return mode;
+    }
+
+    /**
+     * @return The last detected motion state
+     */
+    public int getMotionState() {
+        return mPreferences.getInt(KEY_MOTION_STATE, MotionStateSource.STATE_UNKNOWN);
+    }
+
+    /**
+     * @return The mode the geofences are currently monitored in
+     */
+    public Mode getMode() {
+        if (!mPreferences.contains(KEY_ACTIVITY_INTERVAL)) return Mode.DEFAULT;
+        return new Mode(mPreferences.getBoolean(KEY_SUSPENDED, false),
+                mPreferences.getInt(KEY_RESPONSIVENESS, 0),
+                mPreferences.getLong(KEY_ACTIVITY_INTERVAL, 0));
+    }
+
+    public void setMode(Mode mode) {
+        mPreferences.edit()
+                .putBoolean(KEY_SUSPENDED, mode.suspended)
+                .putInt(KEY_RESPONSIVENESS, mode.responsivenessMillis)
+                .putLong(KEY_ACTIVITY_INTERVAL, mode.activityIntervalMillis)
+                .apply();
+    }
+
+    /**
+     * Starts adapting to the motion states detected by the source, for when monitoring starts
+     *
+     * @param source The source of the motion states
+     */
+    public void start(MotionStateSource source) {
+        mPreferences.edit().putBoolean(KEY_ACTIVE, true).apply();
+        source.start(getMode().activityIntervalMillis);
+    }
+
+    /**
+     * Stops the source, forgets the motion state and goes back to the default mode, for when
+     * monitoring stops
+     *
+     * @param source The source of the motion states
+     */
+    public void stop(MotionStateSource source) {
+        source.stop();
+        mPreferences.edit().clear().apply();
+    }
+
+    /**
+     * Finds the distance to the nearest place stored in the DB
+     *
+     * @param location The location to measure from
+     * @return The distance in meters, -1 if there is no place with a location
+     */
+    public float getNearestPlaceDistance(Location location) {
+        Cursor data = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE},
+                PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE + " IS NOT NULL AND " +
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE + " IS NOT NULL",
+                null,
+                null);
+        if (data == null) return -1;
+        GeofenceClusterer.Point here = new GeofenceClusterer.Point(null,
+                location.getLatitude(), location.getLongitude());
+        double nearest = -1;
+        while (data.moveToNext()) {
+            double distance = GeofenceClusterer.distance(here,
+                    new GeofenceClusterer.Point(null, data.getDouble(0), data.getDouble(1)));
+            if (nearest < 0 || distance < nearest) nearest = distance;
+        }
+        data.close();
+        return (float) nearest;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Registers the geofences again after a reboot, which drops every geofence and alarm of the app.
+ * The registered request IDs and the geofences the user was inside are forgotten first, the
+ * initial ENTER of the new registrations tells which ones the user is still in.
+ */
+public class BootCompletedReceiver extends BroadcastReceiver {
+
+    public static final String TAG = BootCompletedReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) return;
+        GeofenceScheduler.clearRegisteredRequestIds(context);
+        GeofenceBroadcastReceiver.onGeofencesRemoved(context, null);
+        // Plans against the empty registered set, so every active geofence is added
+        context.startService(new Intent(context, GeofenceScheduleService.class));
+    }
+}
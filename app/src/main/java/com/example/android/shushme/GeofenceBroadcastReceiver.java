@@ -16,11 +16,27 @@ package com.example.android.shushme;
 * limitations under the License.
 */
 
+import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
+import android.location.Location;
+import android.media.AudioManager;
 import android.util.Log;
 
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofenceStatusCodes;
+import com.google.android.gms.location.GeofencingEvent;
+import com.google.android.gms.location.LocationResult;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 public class GeofenceBroadcastReceiver extends BroadcastReceiver {
 
     public static final String TAG = GeofenceBroadcastReceiver.class.getSimpleName();
@@ -35,88 +51,186 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
      */
     @Override
     public void onReceive(Context context, Intent intent) {
+        // Post the notifications deferred by the rate limit
+        if (TransitionNotifier.ACTION_FLUSH_NOTIFICATIONS.equals(intent.getAction())) {
+            new TransitionNotifier(context).flushPending();
+            return;
+        }
+
+        // Check the outlines of the places whose circle the user is in
+        if (OutlineMonitor.ACTION_OUTLINE_LOCATION.equals(intent.getAction())) {
+            if (!LocationResult.hasResult(intent)) return;
+            Location location = LocationResult.extractResult(intent).getLastLocation();
+            if (location == null) return;
+            Set<String> entered = new LinkedHashSet<>();
+            Set<String> exited = new LinkedHashSet<>();
+            new OutlineMonitor(context).onLocation(location, entered, exited);
+            onPlaceTransition(context, exited, Geofence.GEOFENCE_TRANSITION_EXIT, location.getTime(), exited);
+            onPlaceTransition(context, entered, Geofence.GEOFENCE_TRANSITION_ENTER, location.getTime(), entered);
+            return;
+        }
+
         // Get the Geofence Event from the Intent sent through
         GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
         if (geofencingEvent.hasError()) {
             Log.e(TAG, String.format("Error code : %d", geofencingEvent.getErrorCode()));
+            // Play Services dropped every geofence, the user is no longer known to be inside any
+            if (geofencingEvent.getErrorCode() == GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE) {
+                onGeofencesRemoved(context, null);
+            }
             return;
         }
 
         // Get the transition type.
         int geofenceTransition = geofencingEvent.getGeofenceTransition();
         // Check which transition type has triggered this event
-        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER) {
-            setRingerMode(context, AudioManager.RINGER_MODE_SILENT);
-        } else if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_EXIT) {
-            setRingerMode(context, AudioManager.RINGER_MODE_NORMAL);
-        } else {
+        if (geofenceTransition != Geofence.GEOFENCE_TRANSITION_ENTER &&
+                geofenceTransition != Geofence.GEOFENCE_TRANSITION_EXIT) {
             // Log the error.
             Log.e(TAG, String.format("Unknown transition : %d", geofenceTransition));
             // No need to do anything else
             return;
         }
-        // Send the notification
-        sendNotification(context, geofenceTransition);
+        // Resolve clusters to their member places
+        Location location = geofencingEvent.getTriggeringLocation();
+        GeofencePresence presence = new GeofencePresence(context);
+        Set<String> placeIds = new LinkedHashSet<>();
+        // The places a visit is recorded for, entering a cluster only visits the members whose
+        // own circle the user is in
+        Set<String> visitedPlaceIds = new HashSet<>();
+        for (Geofence geofence : geofencingEvent.getTriggeringGeofences()) {
+            Set<String> members = GeofenceClusterer.getPlaceIds(context, geofence.getRequestId());
+            placeIds.addAll(members);
+            if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+                presence.onEnter(geofence.getRequestId(), members);
+                visitedPlaceIds.addAll(members.size() > 1 ?
+                        getNearbyPlaceIds(context, members, location) : members);
+            } else {
+                presence.onExit(geofence.getRequestId());
+                // Closing a visit that was never opened does nothing
+                visitedPlaceIds.addAll(members);
+            }
+        }
+        // Alerts may come late when the geofences are not very responsive, the location of the
+        // trigger has the actual time
+        long time = location != null ? location.getTime() : System.currentTimeMillis();
+        // An outlined place only counts once the user is inside its outline
+        placeIds = new OutlineMonitor(context).onGeofenceTransition(placeIds, geofenceTransition, location);
+        visitedPlaceIds.retainAll(placeIds);
+        onPlaceTransition(context, placeIds, geofenceTransition, time, visitedPlaceIds);
     }
 
-
     /**
-     * Posts a notification in the notification bar when a transition is detected
-     * Uses different icon drawables for different transition types
-     * If the user clicks the notification, control goes to the MainActivity
+     * Finds the places of a cluster whose own circle contains a location
      *
-     * @param context        The calling context for building a task stack
-     * @param transitionType The geofence transition type, can be Geofence.GEOFENCE_TRANSITION_ENTER
-     *                       or Geofence.GEOFENCE_TRANSITION_EXIT
+     * @param context  The context to access the content resolver
+     * @param placeIds The member places of the cluster
+     * @param location The location, may be null
+     * @return The places around the location, none if the location is not known
      */
-    private void sendNotification(Context context, int transitionType) {
-        // Create an explicit content Intent that starts the main Activity.
-        Intent notificationIntent = new Intent(context, MainActivity.class);
-
-        // Construct a task stack.
-        TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-
-        // Add the main Activity to the task stack as the parent.
-        stackBuilder.addParentStack(MainActivity.class);
-
-        // Push the content Intent onto the stack.
-        stackBuilder.addNextIntent(notificationIntent);
-
-        // Get a PendingIntent containing the entire back stack.
-        PendingIntent notificationPendingIntent =
-                stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        // Get a notification builder
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
-
-        // Check the transition type to display the relevant icon image
-        if (transitionType == Geofence.GEOFENCE_TRANSITION_ENTER) {
-            builder.setSmallIcon(R.drawable.ic_volume_off_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_off_white_24dp))
-                    .setContentTitle(context.getString(R.string.silent_mode_activated));
-        } else if (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT) {
-            builder.setSmallIcon(R.drawable.ic_volume_up_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_up_white_24dp))
-                    .setContentTitle(context.getString(R.string.back_to_normal));
+    private static Set<String> getNearbyPlaceIds(Context context, Set<String> placeIds,
+                                                 Location location) {
+        Set<String> nearby = new HashSet<>();
+        if (location == null) return nearby;
+        StringBuilder selection = new StringBuilder(PlaceContract.PlaceEntry.COLUMN_PLACE_ID + " IN (");
+        String[] selectionArgs = placeIds.toArray(new String[placeIds.size()]);
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
         }
+        selection.append(')');
+        Cursor data = context.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE},
+                selection.toString(),
+                selectionArgs,
+                null);
+        if (data == null) return nearby;
+        GeofenceClusterer.Point here = new GeofenceClusterer.Point(null,
+                location.getLatitude(), location.getLongitude());
+        float reach = Geofencing.GEOFENCE_RADIUS + (location.hasAccuracy() ? location.getAccuracy() : 0);
+        while (data.moveToNext()) {
+            if (data.isNull(1) || data.isNull(2)) continue;
+            double distance = GeofenceClusterer.distance(here,
+                    new GeofenceClusterer.Point(null, data.getDouble(1), data.getDouble(2)));
+            if (distance <= reach) nearby.add(data.getString(0));
+        }
+        data.close();
+        return nearby;
+    }
 
-        // Continue building the notification
-        builder.setContentText(context.getString(R.string.touch_to_relaunch));
-        builder.setContentIntent(notificationPendingIntent);
-
-        // Dismiss notification once the user touches it.
-        builder.setAutoCancel(true);
+    /**
+     * Exits the places of removed geofences the user was inside, as their EXIT never comes.
+     * Called once Play Services confirmed the removal.
+     *
+     * @param context    The context
+     * @param requestIds The request IDs of the removed geofences, null if all were removed
+     */
+    public static void onGeofencesRemoved(Context context, Collection<String> requestIds) {
+        GeofencePresence presence = new GeofencePresence(context);
+        Set<String> placeIds = requestIds == null ? presence.removeAll() : presence.remove(requestIds);
+        if (placeIds.isEmpty()) return;
+        // Also stops watching the outlines of the places
+        placeIds = new OutlineMonitor(context).onGeofenceTransition(placeIds,
+                Geofence.GEOFENCE_TRANSITION_EXIT, null);
+        onPlaceTransition(context, placeIds, Geofence.GEOFENCE_TRANSITION_EXIT,
+                System.currentTimeMillis(), placeIds);
+    }
 
-        // Get an instance of the Notification manager
-        NotificationManager mNotificationManager =
-                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    /**
+     * Acts on a transition of some places, changing the ringer mode, notifying and recording
+     * the time spent at the places
+     *
+     * @param context    The context
+     * @param placeIds   The Place IDs, nothing happens if empty
+     * @param transition Geofence.GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+     * @param time       When the transition happened, in milliseconds
+     * @param visitedIds The places among them to record the transition for in the dwell times
+     */
+    private static void onPlaceTransition(Context context, Set<String> placeIds, int transition,
+                                          long time, Set<String> visitedIds) {
+        GeofencePresence presence = new GeofencePresence(context);
+        if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+            // Registering a geofence again, such as when the monitoring mode changes or it is
+            // renewed, triggers its initial ENTER again while the user is still inside, the
+            // ringer was already silenced for the visit
+            placeIds = presence.startVisits(placeIds, time);
+            visitedIds = new HashSet<>(visitedIds);
+            visitedIds.retainAll(placeIds);
+        } else {
+            presence.endVisits(placeIds);
+        }
+        if (placeIds.isEmpty()) return;
+        setRingerMode(context, transition == Geofence.GEOFENCE_TRANSITION_ENTER ?
+                AudioManager.RINGER_MODE_SILENT : AudioManager.RINGER_MODE_NORMAL);
+        // Send the notifications, one per place
+        new TransitionNotifier(context).onTransition(placeIds, transition);
+        if (!visitedIds.isEmpty()) recordDwell(context, visitedIds, transition, time);
+    }
 
-        // Issue the notification
-        mNotificationManager.notify(0, builder.build());
+    /**
+     * Hands the transition of every place to the dwell aggregator of the provider
+     *
+     * @param context    The context to access the content resolver
+     * @param placeIds   The Place IDs
+     * @param transition The geofence transition
+     * @param time       When the transition happened, in milliseconds
+     */
+    private static void recordDwell(Context context, Set<String> placeIds, int transition, long time) {
+        ContentValues[] values = new ContentValues[placeIds.size()];
+        int i = 0;
+        for (String placeId : placeIds) {
+            ContentValues value = new ContentValues();
+            value.put(PlaceContract.DwellEntry.COLUMN_PLACE_ID, placeId);
+            value.put(PlaceContract.DwellEntry.COLUMN_TRANSITION, transition);
+            value.put(PlaceContract.DwellEntry.COLUMN_TIME, time);
+            values[i++] = value;
+        }
+        context.getContentResolver().bulkInsert(PlaceContract.DwellEntry.TRANSITIONS_CONTENT_URI, values);
     }
 
+
     /**
      * Changes the ringer mode on the device to either silent or back to normal
      *
@@ -124,7 +238,7 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
      * @param mode    The desired mode to switch device to, can be AudioManager.RINGER_MODE_SILENT or
      *                AudioManager.RINGER_MODE_NORMAL
      */
-    private void setRingerMode(Context context, int mode) {
+    private static void setRingerMode(Context context, int mode) {
         NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         // Check for DND permissions for API 24+
         if (android.os.Build.VERSION.SDK_INT < 24 ||
@@ -0,0 +1,341 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges places lying within a given distance of each other into clusters, so that a dense
+ * group of places is monitored by one enclosing geofence instead of many overlapping ones.
+ * <p>
+ * Places are bucketed into a grid whose cells are as wide as the merge distance, so only the
+ * neighbouring cells need to be checked for each place. Places closer than the merge distance
+ * are joined with a union-find, the same connected components DBSCAN finds with one point
+ * per core. Since a chain of places can link up over any length, a component whose enclosing
+ * geofence would be larger than {@link #MAX_CLUSTER_RADIUS} is split in halves along its longer
+ * side until every part fits.
+ */
+public class GeofenceClusterer {
+
+    private static final String PREFERENCES_NAME = "geofence_clusters";
+    private static final String CLUSTER_ID_PREFIX = "cluster:";
+    private static final double METERS_PER_DEGREE = 111320;
+    static final double EARTH_RADIUS = 6371000; // meters
+    // Largest enclosing geofence, so that a cluster never silences a whole street
+    static final float MAX_CLUSTER_RADIUS = 300; // 300 meters
+
+    /**
+     * A place to be clustered
+     */
+    public static class Point {
+        final String id;
+        final double latitude;
+        final double longitude;
+
+        public Point(String id, double latitude, double longitude) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /**
+     * A group of places monitored by one circular geofence
+     */
+    public static class Cluster {
+        public final String requestId;
+        public final double latitude;
+        public final double longitude;
+        public final float radius;
+        public final List<String> placeIds;
+
+        Cluster(String requestId, double latitude, double longitude, float radius, List<String> placeIds) {
+            this.requestId = requestId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.placeIds = placeIds;
+        }
+    }
+
+    private GeofenceClusterer() {
+    }
+
+    /**
+     * Clusters the places. A place with no neighbour within the merge distance keeps its own
+     * Place ID as the request ID, a merged cluster gets a generated one.
+     *
+     * @param points        The places to cluster
+     * @param mergeDistance The distance in meters under which two places are merged, 0 or less
+     *                      disables the merging
+     * @param radius        The geofence radius around each single place, in meters
+     * @return The clusters, one per geofence to register
+     */
+    public static List<Cluster> cluster(List<Point> points, float mergeDistance, float radius) {
+        int count = points.size();
+        int[] parents = new int[count];
+        for (int i = 0; i < count; i++) parents[i] = i;
+
+        if (mergeDistance > 0 && count > 1) {
+            // Bucket the places into grid cells as large as the merge distance
+            double cellDegrees = mergeDistance / METERS_PER_DEGREE;
+            double longitudeCellDegrees = longitudeCellDegrees(cellDegrees, points);
+            Map<Long, List<Integer>> cells = new HashMap<>();
+            long[] rows = new long[count];
+            long[] columns = new long[count];
+            for (int i = 0; i < count; i++) {
+                Point point = points.get(i);
+                rows[i] = (long) Math.floor(point.latitude / cellDegrees);
+                columns[i] = (long) Math.floor(point.longitude / longitudeCellDegrees);
+                Long key = cellKey(rows[i], columns[i]);
+                List<Integer> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<>();
+                    cells.put(key, cell);
+                }
+                cell.add(i);
+            }
+
+            // Merge each place with its close neighbours in the surrounding cells
+            for (int i = 0; i < count; i++) {
+                for (long row = rows[i] - 1; row <= rows[i] + 1; row++) {
+                    for (long column = columns[i] - 1; column <= columns[i] + 1; column++) {
+                        List<Integer> cell = cells.get(cellKey(row, column));
+                        if (cell == null) continue;
+                        for (int j : cell) {
+                            if (j > i && distance(points.get(i), points.get(j)) <= mergeDistance) {
+                                union(parents, i, j);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Collect the members of each cluster
+        Map<Integer, List<Point>> members = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int root = find(parents, i);
+            List<Point> cluster = members.get(root);
+            if (cluster == null) {
+                cluster = new ArrayList<>();
+                members.put(root, cluster);
+            }
+            cluster.add(points.get(i));
+        }
+
+        List<Cluster> clusters = new ArrayList<>(members.size());
+        for (List<Point> cluster : members.values()) {
+            addClusters(clusters, cluster, radius);
+        }
+        return clusters;
+    }
+
+    /**
+     * Encloses the places in one cluster, or splits them at the median of the longer side of
+     * their bounding box while the enclosing geofence is too large
+     */
+    private static void addClusters(List<Cluster> clusters, List<Point> points, float radius) {
+        Cluster cluster = enclose(points, radius);
+        if (cluster.radius <= MAX_CLUSTER_RADIUS || points.size() == 1) {
+            clusters.add(cluster);
+            return;
+        }
+        double minLatitude = Double.MAX_VALUE;
+        double maxLatitude = -Double.MAX_VALUE;
+        double minLongitude = Double.MAX_VALUE;
+        double maxLongitude = -Double.MAX_VALUE;
+        for (Point point : points) {
+            minLatitude = Math.min(minLatitude, point.latitude);
+            maxLatitude = Math.max(maxLatitude, point.latitude);
+            minLongitude = Math.min(minLongitude, point.longitude);
+            maxLongitude = Math.max(maxLongitude, point.longitude);
+        }
+        double longitudeScale = Math.cos(Math.toRadians((minLatitude + maxLatitude) / 2));
+        final boolean byLatitude = maxLatitude - minLatitude >=
+                (maxLongitude - minLongitude) * longitudeScale;
+        List<Point> sorted = new ArrayList<>(points);
+        Collections.sort(sorted, new Comparator<Point>() {
+            @Override
+            public int compare(Point a, Point b) {
+                return byLatitude ? Double.compare(a.latitude, b.latitude) :
+                        Double.compare(a.longitude, b.longitude);
+            }
+        });
+        int half = sorted.size() / 2;
+        addClusters(clusters, sorted.subList(0, half), radius);
+        addClusters(clusters, sorted.subList(half, sorted.size()), radius);
+    }
+
+    /**
+     * Builds the geofence enclosing all the places of a cluster, centered on their centroid
+     */
+    private static Cluster enclose(List<Point> cluster, float radius) {
+        if (cluster.size() == 1) {
+            Point point = cluster.get(0);
+            return new Cluster(point.id, point.latitude, point.longitude, radius,
+                    Collections.singletonList(point.id));
+        }
+        double latitude = 0;
+        double longitude = 0;
+        List<String> placeIds = new ArrayList<>(cluster.size());
+        for (Point point : cluster) {
+            latitude += point.latitude;
+            longitude += point.longitude;
+            placeIds.add(point.id);
+        }
+        Point center = new Point(null, latitude / cluster.size(), longitude / cluster.size());
+        double farthest = 0;
+        for (Point point : cluster) {
+            farthest = Math.max(farthest, distance(center, point));
+        }
+        Collections.sort(placeIds);
+        return new Cluster(getClusterId(placeIds), center.latitude, center.longitude,
+                (float) (farthest + radius), placeIds);
+    }
+
+    /**
+     * Derives the request ID of a cluster from a digest of its sorted members, so that the same
+     * members always produce the same ID and different members practically never do
+     */
+    private static String getClusterId(List<String> sortedPlaceIds) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String placeId : sortedPlaceIds) {
+                digest.update(placeId.getBytes("UTF-8"));
+                // Place IDs never contain a line break, which keeps the members apart
+                digest.update((byte) '\n');
+            }
+            StringBuilder requestId = new StringBuilder(CLUSTER_ID_PREFIX);
+            for (byte b : digest.digest()) {
+                requestId.append(String.format("%02x", b));
+            }
+            return requestId.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Every platform has SHA-1 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stores which places each cluster stands for, once its geofence has been added. A request
+     * ID always stands for the same members, so the clusters still registered are unaffected.
+     *
+     * @param context  The context to access the SharedPreferences
+     * @param clusters The clusters added as geofences
+     */
+    public static void saveClusters(Context context, Collection<Cluster> clusters) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE).edit();
+        for (Cluster cluster : clusters) {
+            if (cluster.placeIds.size() > 1) {
+                editor.putStringSet(cluster.requestId, new HashSet<>(cluster.placeIds));
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the members of clusters once their geofences have been removed
+     *
+     * @param context    The context to access the SharedPreferences
+     * @param requestIds The request IDs of the removed geofences, null if all were removed
+     */
+    public static void removeClusters(Context context, Collection<String> requestIds) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE).edit();
+        if (requestIds == null) {
+            editor.clear();
+        } else {
+            for (String requestId : requestIds) {
+                editor.remove(requestId);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Maps the request ID of a triggered geofence back to the places it stands for
+     *
+     * @param context   The context to access the SharedPreferences
+     * @param requestId The request ID of the geofence
+     * @return The Place IDs of the member places, the request ID itself for a single place
+     */
+    public static Set<String> getPlaceIds(Context context, String requestId) {
+        if (!requestId.startsWith(CLUSTER_ID_PREFIX)) return Collections.singleton(requestId);
+        Set<String> placeIds = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getStringSet(requestId, null);
+        if (placeIds == null) return Collections.emptySet();
+        return new HashSet<>(placeIds);
+    }
+
+    /**
+     * Degrees of longitude shrink towards the poles, size the cells for the place farthest from
+     * the equator so that every cell is at least as wide as the merge distance
+     */
+    private static double longitudeCellDegrees(double cellDegrees, List<Point> points) {
+        double maxLatitude = 0;
+        for (Point point : points) {
+            maxLatitude = Math.max(maxLatitude, Math.abs(point.latitude));
+        }
+        return cellDegrees / Math.max(Math.cos(Math.toRadians(maxLatitude)), 0.01);
+    }
+
+    private static Long cellKey(long row, long column) {
+        return (row << 32) ^ (column & 0xFFFFFFFFL);
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int i, int j) {
+        int rootI = find(parents, i);
+        int rootJ = find(parents, j);
+        if (rootI != rootJ) parents[rootJ] = rootI;
+    }
+
+    /**
+     * Great-circle distance between two places, using the haversine formula
+     */
+    static double distance(Point a, Point b) {
+        double dLat = Math.toRadians(b.latitude - a.latitude);
+        double dLng = Math.toRadians(b.longitude - a.longitude);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(a.latitude)) * Math.cos(Math.toRadians(b.latitude)) *
+                        Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(h));
+    }
+}
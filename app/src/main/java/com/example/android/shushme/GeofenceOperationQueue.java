@@ -0,0 +1,200 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Runs the geofence operations of the whole process one at a time, so that at most one Play
+ * Services call is in flight at any moment, whichever {@link Geofencing} submitted it.
+ * <p>
+ * Only the latest requested operation waits behind the running one, a newer request supersedes
+ * it. A burst of toggles such as register, unregister, register therefore ends up as a single
+ * register. Each operation is planned into its Play Services calls only when it starts, so it
+ * works from the latest geofence snapshot rather than the one current when it was requested.
+ * The effects of an operation on the stored state are applied as its results come in, never
+ * when it is planned.
+ * <p>
+ * A blocking operation, submitted from a background thread that disconnects its client once
+ * done, is run by the thread that submitted it, which waits for any call in flight first.
+ */
+public class GeofenceOperationQueue {
+
+    // Operations that can be submitted
+    public static final int OP_APPLY_SCHEDULE = 1;
+    public static final int OP_REGISTER = 2;
+    public static final int OP_UNREGISTER = 3;
+
+    private static final GeofenceOperationQueue sInstance = new GeofenceOperationQueue();
+
+    /**
+     * A single Play Services call of an operation
+     */
+    public interface Call {
+        /**
+         * @return the pending result of the call, or null if it had nothing to do
+         */
+        PendingResult<Status> start();
+
+        /**
+         * Receives the result of the call
+         */
+        void onResult(Status status);
+    }
+
+    /**
+     * Turns an operation into the calls that carry it out
+     */
+    public interface Planner {
+        List<Call> plan(int operation);
+
+        /**
+         * Called once every call of the operation has its result
+         */
+        void onFinished(int operation);
+    }
+
+    /**
+     * An operation and who submitted it
+     */
+    private static final class Submission {
+        final int operation;
+        final Planner planner;
+        final boolean blocking;
+        final Thread owner;
+
+        Submission(int operation, Planner planner, boolean blocking) {
+            this.operation = operation;
+            this.planner = planner;
+            this.blocking = blocking;
+            this.owner = Thread.currentThread();
+        }
+    }
+
+    private final Deque<Call> mCalls = new ArrayDeque<>();
+    // Operation whose calls are in mCalls
+    private Submission mCurrent;
+    private Submission mPending;
+    private boolean mRunning;
+
+    private GeofenceOperationQueue() {
+    }
+
+    /**
+     * @return The queue every geofence operation of the process goes through
+     */
+    public static GeofenceOperationQueue getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Requests an operation, superseding any operation still waiting to run. An incremental
+     * schedule update does not supersede a waiting full register, which already covers it.
+     *
+     * @param operation One of the OP_ constants
+     * @param planner   Plans the calls of the operation and receives its end
+     * @param blocking  true to run the operation on the calling thread, waiting for each result
+     *                  before returning
+     */
+    public void submit(int operation, Planner planner, boolean blocking) {
+        Submission submission = new Submission(operation, planner, blocking);
+        synchronized (this) {
+            if (operation == OP_APPLY_SCHEDULE && mPending != null &&
+                    mPending.operation == OP_REGISTER) {
+                return;
+            }
+            mPending = submission;
+            if (blocking) {
+                // The thread running the queue hands a blocking operation over to its owner
+                try {
+                    while (mRunning && mPending == submission) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    if (mPending == submission) mPending = null;
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // Superseded while waiting
+                if (mPending != submission) return;
+            } else if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        runNext();
+    }
+
+    /**
+     * Starts the next call, planning the waiting operation once the current one has no calls
+     * left. Returns without blocking as soon as a call of a non-blocking operation is in flight.
+     */
+    private void runNext() {
+        while (true) {
+            Call call = null;
+            Submission current = null;
+            Submission finished = null;
+            synchronized (this) {
+                if (!mCalls.isEmpty()) {
+                    call = mCalls.poll();
+                    current = mCurrent;
+                } else if (mCurrent != null) {
+                    finished = mCurrent;
+                    mCurrent = null;
+                } else if (mPending == null ||
+                        (mPending.blocking && mPending.owner != Thread.currentThread())) {
+                    mRunning = false;
+                    notifyAll();
+                    return;
+                } else {
+                    mCurrent = mPending;
+                    mPending = null;
+                    mCalls.addAll(mCurrent.planner.plan(mCurrent.operation));
+                    continue;
+                }
+            }
+            if (finished != null) {
+                finished.planner.onFinished(finished.operation);
+                continue;
+            }
+
+            final Call started = call;
+            PendingResult<Status> pendingResult = started.start();
+            if (pendingResult == null) continue;
+            if (current.blocking) {
+                started.onResult(pendingResult.await());
+                continue;
+            }
+            pendingResult.setResultCallback(new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull Status status) {
+                    started.onResult(status);
+                    runNext();
+                }
+            });
+            return;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which geofences the user is inside, along with the places each one stood for when
+ * it was entered, and which places the ringer was silenced for.
+ * <p>
+ * Play Services sends no EXIT for a geofence removed while the user is inside it, such as when
+ * its activation window closes, its group is muted or monitoring is suspended. The places of
+ * such a geofence are handed back on removal so that they can be exited like on a real EXIT.
+ * <p>
+ * Registering a geofence again triggers its initial ENTER again while the user is still inside,
+ * so a place is only acted on when its visit starts. The visit lasts until the place is exited,
+ * however its geofences come and go meanwhile.
+ */
+public class GeofencePresence {
+
+    private static final String PREFERENCES_NAME = "geofence_presence";
+    // Maps the Place ID of each open visit to the time it started
+    private static final String VISITS_PREFERENCES_NAME = "geofence_visits";
+
+    private final SharedPreferences mPreferences;
+    private final SharedPreferences mVisits;
+
+    public GeofencePresence(Context context) {
+        mPreferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mVisits = context.getApplicationContext()
+                .getSharedPreferences(VISITS_PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The request IDs of the geofences the user is inside
+     */
+    public Set<String> getRequestIds() {
+        return new HashSet<>(mPreferences.getAll().keySet());
+    }
+
+    /**
+     * @param requestId The request ID of the entered geofence
+     * @param placeIds  The places the geofence stands for
+     */
+    public void onEnter(String requestId, Set<String> placeIds) {
+        mPreferences.edit().putStringSet(requestId, new HashSet<>(placeIds)).apply();
+    }
+
+    /**
+     * @param requestId The request ID of the exited geofence
+     */
+    public void onExit(String requestId) {
+        mPreferences.edit().remove(requestId).apply();
+    }
+
+    /**
+     * Forgets the given geofences, for when they have been removed or are added again
+     *
+     * @param requestIds The request IDs of the removed geofences
+     * @return The places of those the user was inside
+     */
+    public Set<String> remove(Collection<String> requestIds) {
+        Set<String> placeIds = new HashSet<>();
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String requestId : requestIds) {
+            Set<String> members = mPreferences.getStringSet(requestId, null);
+            if (members == null) continue;
+            placeIds.addAll(members);
+            editor.remove(requestId);
+        }
+        editor.apply();
+        return placeIds;
+    }
+
+    /**
+     * Forgets every geofence, for when they have all been removed
+     *
+     * @return The places of the geofences the user was inside
+     */
+    public Set<String> removeAll() {
+        Set<String> placeIds = new HashSet<>();
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Set) {
+                for (Object placeId : (Set<?>) entry.getValue()) {
+                    placeIds.add((String) placeId);
+                }
+            }
+        }
+        mPreferences.edit().clear().apply();
+        return placeIds;
+    }
+
+    /**
+     * Starts a visit of the entered places that are not being visited already
+     *
+     * @param placeIds The entered places
+     * @param time     When they were entered, in milliseconds
+     * @return The places whose visit started
+     */
+    public Set<String> startVisits(Collection<String> placeIds, long time) {
+        Set<String> started = new HashSet<>();
+        SharedPreferences.Editor editor = mVisits.edit();
+        for (String placeId : placeIds) {
+            if (mVisits.contains(placeId)) continue;
+            editor.putLong(placeId, time);
+            started.add(placeId);
+        }
+        editor.apply();
+        return started;
+    }
+
+    /**
+     * Ends the visit of the exited places
+     *
+     * @param placeIds The exited places
+     */
+    public void endVisits(Collection<String> placeIds) {
+        SharedPreferences.Editor editor = mVisits.edit();
+        for (String placeId : placeIds) {
+            editor.remove(placeId);
+        }
+        editor.apply();
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.GeofenceStatusCodes;
+
+import java.util.Random;
+
+/**
+ * Handles the results of the geofence add and remove calls.
+ * <p>
+ * Every result is counted per status code. Transient failures, such as location being turned
+ * off or the client being disconnected, are retried by {@link GeofenceScheduleService} after a
+ * jittered exponential backoff, so that registrations recover without the app being reopened.
+ * Permanent failures are kept for the UI and broadcast to it while it is showing.
+ */
+public class GeofenceResultHandler {
+
+    // Constants
+    public static final String TAG = GeofenceResultHandler.class.getSimpleName();
+    public static final String ACTION_GEOFENCE_FAILURE =
+            "com.example.android.shushme.action.GEOFENCE_FAILURE";
+    public static final String EXTRA_STATUS_MESSAGE = "status_message";
+
+    private static final long BASE_RETRY_DELAY = 30 * 1000; // 30 seconds
+    private static final long MAX_RETRY_DELAY = 60 * 60 * 1000; // 1 hour
+    private static final int MAX_RETRY_ATTEMPTS = 10;
+
+    private static final String PREFERENCES_NAME = "geofence_results";
+    private static final String KEY_COUNT_PREFIX = "count_";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_FAILURE_MESSAGE = "failure_message";
+
+    private static final Random sRandom = new Random();
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    public GeofenceResultHandler(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Counts the result and either resets the backoff, schedules a retry of the operation or
+     * reports the failure
+     *
+     * @param operation The GeofenceOperationQueue operation the result belongs to
+     * @param status    The result of the call
+     */
+    public void handle(int operation, Status status) {
+        int statusCode = status.getStatusCode();
+        String countKey = KEY_COUNT_PREFIX + statusCode;
+        mPreferences.edit().putInt(countKey, mPreferences.getInt(countKey, 0) + 1).apply();
+
+        if (status.isSuccess()) {
+            mPreferences.edit().remove(KEY_ATTEMPTS).apply();
+            return;
+        }
+
+        String message = status.getStatusMessage() != null ? status.getStatusMessage() :
+                GeofenceStatusCodes.getStatusCodeString(statusCode);
+        if (isTransient(statusCode)) {
+            int attempts = mPreferences.getInt(KEY_ATTEMPTS, 0);
+            if (attempts < MAX_RETRY_ATTEMPTS) {
+                long delay = getRetryDelay(attempts);
+                Log.w(TAG, String.format("Geofence operation failed : %s, retrying in %d ms",
+                        message, delay));
+                mPreferences.edit().putInt(KEY_ATTEMPTS, attempts + 1).apply();
+                scheduleRetry(operation, delay);
+                return;
+            }
+            Log.e(TAG, String.format("Geofence operation failed : %s, giving up after %d attempts",
+                    message, attempts));
+            mPreferences.edit().remove(KEY_ATTEMPTS).apply();
+        } else {
+            Log.e(TAG, String.format("Geofence operation failed : %s", message));
+        }
+        reportFailure(message);
+    }
+
+    /**
+     * Reports a call refused for lack of the location permission. It is a permanent failure,
+     * counted under CommonStatusCodes.ERROR.
+     *
+     * @param operation The GeofenceOperationQueue operation the call belongs to
+     */
+    public void handlePermissionFailure(int operation) {
+        handle(operation, new Status(CommonStatusCodes.ERROR,
+                mContext.getString(R.string.need_location_permission_message)));
+    }
+
+    /**
+     * Cancels the pending retry, if any, and resets the backoff. Called when the geofences are
+     * being unregistered, so that a failed register call cannot add them back later.
+     */
+    public void cancelRetry() {
+        PendingIntent retryIntent = PendingIntent.getService(mContext, 0, getRetryIntent(
+                GeofenceOperationQueue.OP_REGISTER), PendingIntent.FLAG_NO_CREATE);
+        if (retryIntent != null) {
+            AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(retryIntent);
+            retryIntent.cancel();
+        }
+        mPreferences.edit().remove(KEY_ATTEMPTS).apply();
+    }
+
+    /**
+     * @param statusCode A status code
+     * @return The number of results seen with the status code
+     */
+    public int getCount(int statusCode) {
+        return mPreferences.getInt(KEY_COUNT_PREFIX + statusCode, 0);
+    }
+
+    /**
+     * Returns and forgets the last permanent failure, for the UI to show once
+     *
+     * @return The failure message, or null if there was none
+     */
+    public String consumeFailureMessage() {
+        String message = mPreferences.getString(KEY_FAILURE_MESSAGE, null);
+        if (message != null) mPreferences.edit().remove(KEY_FAILURE_MESSAGE).apply();
+        return message;
+    }
+
+    /**
+     * Failures that can clear up on their own, as opposed to configuration and permission errors
+     */
+    static boolean isTransient(int statusCode) {
+        switch (statusCode) {
+            // Location is turned off, the geofences come back once it is on again
+            case GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE:
+            // Other apps or expired fences may free up slots
+            case GeofenceStatusCodes.GEOFENCE_TOO_MANY_GEOFENCES:
+            case CommonStatusCodes.API_NOT_CONNECTED:
+            case CommonStatusCodes.NETWORK_ERROR:
+            case CommonStatusCodes.INTERNAL_ERROR:
+            case CommonStatusCodes.INTERRUPTED:
+            case CommonStatusCodes.TIMEOUT:
+                return true;
+            // SERVICE_DISABLED means Play Services was disabled by the user, which only they
+            // can undo, so it is reported like the other permanent failures
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Exponential backoff from the base delay up to the max delay, with a random jitter over
+     * the upper half so that retries do not line up
+     */
+    static long getRetryDelay(int attempts) {
+        long delay = BASE_RETRY_DELAY << Math.min(attempts, 20);
+        delay = Math.min(delay, MAX_RETRY_DELAY);
+        return delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Sets the alarm that runs the operation again in {@link GeofenceScheduleService},
+     * replacing any earlier retry
+     */
+    private void scheduleRetry(int operation, long delay) {
+        PendingIntent retryIntent = PendingIntent.getService(mContext, 0, getRetryIntent(operation),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + delay, retryIntent);
+    }
+
+    /**
+     * The extra is not part of the PendingIntent's identity, so every retry shares one alarm
+     */
+    private Intent getRetryIntent(int operation) {
+        Intent intent = new Intent(mContext, GeofenceScheduleService.class);
+        intent.setAction(GeofenceScheduleService.ACTION_RETRY);
+        intent.putExtra(GeofenceScheduleService.EXTRA_OPERATION, operation);
+        return intent;
+    }
+
+    private void reportFailure(String message) {
+        mPreferences.edit().putString(KEY_FAILURE_MESSAGE, message).apply();
+        Intent intent = new Intent(ACTION_GEOFENCE_FAILURE);
+        intent.putExtra(EXTRA_STATUS_MESSAGE, message);
+        LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.ActivityRecognition;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Started by the alarm set by {@link GeofenceScheduler} when an activation window opens or
+ * closes. Registers or unregisters only the Geofences whose window changed, using the place
+ * locations stored in the DB, and sets the alarm for the following boundary. The same alarm
+ * renews the geofences before they expire, and {@link BootCompletedReceiver} starts it after a
+ * reboot.
+ * <p>
+ * Also started by {@link GeofenceResultHandler} to retry an operation that failed transiently,
+ * by {@link AdaptiveMonitor} to adapt the geofences to a new motion state, and by
+ * {@link OutlineMonitor} to start or stop the location updates it checks outlines with.
+ */
+public class GeofenceScheduleService extends IntentService {
+
+    // Constants
+    public static final String TAG = GeofenceScheduleService.class.getSimpleName();
+    public static final String ACTION_RETRY = "com.example.android.shushme.action.RETRY_GEOFENCES";
+    public static final String ACTION_MOTION_CHANGED =
+            "com.example.android.shushme.action.MOTION_CHANGED";
+    public static final String ACTION_WATCH_OUTLINES =
+            "com.example.android.shushme.action.WATCH_OUTLINES";
+    public static final String EXTRA_OPERATION = "operation";
+    private static final long CONNECTION_TIMEOUT_SECONDS = 30;
+
+    public GeofenceScheduleService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String action = intent != null ? intent.getAction() : null;
+        int operation = ACTION_RETRY.equals(action) ?
+                intent.getIntExtra(EXTRA_OPERATION, GeofenceOperationQueue.OP_REGISTER) : -1;
+        // Alarms and motion changes may still come in after the user turned the geofences off,
+        // only a failed unregister call is still retried
+        if (!Geofencing.isEnabled(this) && !ACTION_WATCH_OUTLINES.equals(action) &&
+                operation != GeofenceOperationQueue.OP_UNREGISTER) {
+            return;
+        }
+        GoogleApiClient client = new GoogleApiClient.Builder(this)
+                .addApi(LocationServices.API)
+                .addApi(ActivityRecognition.API)
+                .build();
+        ConnectionResult result = client.blockingConnect(CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.isSuccess()) {
+            Log.e(TAG, String.format("API Client Connection Failed : %d", result.getErrorCode()));
+            return;
+        }
+        try {
+            Geofencing geofencing = new Geofencing(this, client);
+            geofencing.setBlocking(true);
+            if (ACTION_WATCH_OUTLINES.equals(action)) {
+                new OutlineMonitor(this).updateLocationUpdates(client);
+                return;
+            }
+            if (ACTION_MOTION_CHANGED.equals(action)) {
+                adaptToMotion(client, geofencing);
+                return;
+            }
+            geofencing.loadGeofencesList();
+            if (ACTION_RETRY.equals(action)) {
+                if (operation == GeofenceOperationQueue.OP_UNREGISTER) {
+                    geofencing.unRegisterAllGeofences();
+                } else {
+                    // Register everything again, the failed call may have left any of them out
+                    geofencing.registerAllGeofences();
+                }
+            } else {
+                geofencing.applySchedule();
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Switches to the monitoring mode for the current motion state, see
+     * {@link AdaptiveMonitor#adapt}
+     */
+    private void adaptToMotion(GoogleApiClient client, final Geofencing geofencing) {
+        AdaptiveMonitor monitor = new AdaptiveMonitor(this);
+        float nearestPlaceDistance = -1;
+        try {
+            // Only reuses a location other apps asked for, adapting must not cost a fix
+            Location location = LocationServices.FusedLocationApi.getLastLocation(client);
+            if (location != null) nearestPlaceDistance = monitor.getNearestPlaceDistance(location);
+        } catch (SecurityException securityException) {
+            Log.e(TAG, securityException.getMessage());
+        }
+        // Outline checks stop while still and resume once moving
+        new OutlineMonitor(this).updateLocationUpdates(client);
+        monitor.adapt(nearestPlaceDistance, new AdaptiveMonitor.Registrar() {
+            @Override
+            public void registerAllGeofences() {
+                geofencing.loadGeofencesList();
+                geofencing.registerAllGeofences();
+            }
+        }, new ActivityRecognitionMotionSource(this, client));
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out which geofences should be active at a given time from the daily activation windows
+ * of the places, and when the next window opens or closes.
+ * <p>
+ * The request IDs currently registered are kept in SharedPreferences so that the scheduler can
+ * register or unregister only the geofences whose state changes at a boundary, even when the
+ * boundary is handled by {@link GeofenceScheduleService} in the background. Each is kept with
+ * the time it was registered, since Play Services drops a geofence once it expires, and one
+ * about to expire counts as unregistered so that it is renewed. A reboot drops them all, which
+ * {@link BootCompletedReceiver} handles.
+ */
+public class GeofenceScheduler {
+
+    // Maps each registered request ID to the time it was registered
+    private static final String PREFERENCES_NAME = "geofence_registrations";
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    // How long before it expires a geofence is renewed
+    private static final long RENEWAL_MARGIN = 5 * 60 * 1000; // 5 minutes
+
+    /**
+     * A daily activation window, in minutes since midnight. A window whose end comes before its
+     * start runs over midnight.
+     */
+    public static class Window {
+        public final int startMinute;
+        public final int endMinute;
+
+        public Window(int startMinute, int endMinute) {
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+        }
+
+        boolean contains(int minute) {
+            if (startMinute <= endMinute) return minute >= startMinute && minute < endMinute;
+            return minute >= startMinute || minute < endMinute;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Window)) return false;
+            Window other = (Window) o;
+            return startMinute == other.startMinute && endMinute == other.endMinute;
+        }
+
+        @Override
+        public int hashCode() {
+            return startMinute * MINUTES_PER_DAY + endMinute;
+        }
+    }
+
+    private GeofenceScheduler() {
+    }
+
+    /**
+     * Finds the geofences whose window is open at the given time, a geofence without a window
+     * is always active
+     *
+     * @param requestIds All the registered request IDs
+     * @param windows    The activation window of each request ID that has one
+     * @param now        The time to check
+     * @return The request IDs that should be active
+     */
+    public static Set<String> getActiveRequestIds(Collection<String> requestIds,
+                                                  Map<String, Window> windows, Calendar now) {
+        int minute = minuteOfDay(now);
+        Set<String> active = new HashSet<>();
+        for (String requestId : requestIds) {
+            Window window = windows.get(requestId);
+            if (window == null || window.contains(minute)) active.add(requestId);
+        }
+        return active;
+    }
+
+    /**
+     * Finds the next time any of the windows opens or closes
+     *
+     * @param windows The activation windows
+     * @param now     The time to start from
+     * @return The time of the next boundary in milliseconds, or -1 if there are no windows
+     */
+    public static long getNextBoundary(Collection<Window> windows, Calendar now) {
+        int minute = minuteOfDay(now);
+        int minutesUntil = Integer.MAX_VALUE;
+        for (Window window : windows) {
+            minutesUntil = Math.min(minutesUntil, minutesUntil(minute, window.startMinute));
+            minutesUntil = Math.min(minutesUntil, minutesUntil(minute, window.endMinute));
+        }
+        if (minutesUntil == Integer.MAX_VALUE) return -1;
+        Calendar boundary = (Calendar) now.clone();
+        boundary.set(Calendar.SECOND, 0);
+        boundary.set(Calendar.MILLISECOND, 0);
+        boundary.add(Calendar.MINUTE, minutesUntil);
+        return boundary.getTimeInMillis();
+    }
+
+    /**
+     * Sets the alarm that starts {@link GeofenceScheduleService} at the next boundary,
+     * replacing any earlier one
+     *
+     * @param context         The context to access the ALARM_SERVICE
+     * @param triggerAtMillis The wall clock time of the boundary, -1 to only cancel the alarm
+     */
+    public static void scheduleAlarm(Context context, long triggerAtMillis) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = getAlarmIntent(context);
+        if (triggerAtMillis < 0) {
+            alarmManager.cancel(pendingIntent);
+        } else if (android.os.Build.VERSION.SDK_INT >= 19) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, triggerAtMillis, pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, triggerAtMillis, pendingIntent);
+        }
+    }
+
+    /**
+     * @return The request IDs Play Services confirmed as registered and that are not about to
+     * expire
+     */
+    public static Set<String> getRegisteredRequestIds(Context context) {
+        long now = System.currentTimeMillis();
+        Set<String> registered = new HashSet<>();
+        for (Map.Entry<String, ?> entry : getPreferences(context).getAll().entrySet()) {
+            if (entry.getValue() instanceof Long && getRenewalTime((Long) entry.getValue()) > now) {
+                registered.add(entry.getKey());
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * @return The time the next registered geofence needs renewing, -1 if none does. One past
+     * its renewal time is left to the retry of the failed add call.
+     */
+    public static long getNextRenewal(Context context) {
+        long now = System.currentTimeMillis();
+        long next = -1;
+        for (Object registeredAt : getPreferences(context).getAll().values()) {
+            if (!(registeredAt instanceof Long)) continue;
+            long renewal = getRenewalTime((Long) registeredAt);
+            if (renewal > now && (next < 0 || renewal < next)) next = renewal;
+        }
+        return next;
+    }
+
+    /**
+     * Records request IDs added by a successful add call, which restarts their expiry, and
+     * forgets the ones that have expired since
+     */
+    public static void addRegisteredRequestIds(Context context, Collection<String> requestIds) {
+        long now = System.currentTimeMillis();
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Object registeredAt = entry.getValue();
+            if (!(registeredAt instanceof Long) ||
+                    (Long) registeredAt + Geofencing.GEOFENCE_TIMEOUT <= now) {
+                editor.remove(entry.getKey());
+            }
+        }
+        for (String requestId : requestIds) {
+            editor.putLong(requestId, now);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets request IDs removed by a successful remove call
+     */
+    public static void removeRegisteredRequestIds(Context context, Collection<String> requestIds) {
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        for (String requestId : requestIds) {
+            editor.remove(requestId);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets every request ID, for when all the geofences have been removed or dropped
+     */
+    public static void clearRegisteredRequestIds(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static long getRenewalTime(long registeredAt) {
+        return registeredAt + Geofencing.GEOFENCE_TIMEOUT - RENEWAL_MARGIN;
+    }
+
+    private static PendingIntent getAlarmIntent(Context context) {
+        Intent intent = new Intent(context, GeofenceScheduleService.class);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static int minuteOfDay(Calendar time) {
+        return time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+    }
+
+    private static int minutesUntil(int from, int to) {
+        int minutes = (to - from + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+        // A boundary at the current minute has already been applied, the next one is a day later
+        return minutes == 0 ? MINUTES_PER_DAY : minutes;
+    }
+}
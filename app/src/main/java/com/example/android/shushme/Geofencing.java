@@ -19,12 +19,14 @@ package com.example.android.shushme;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.support.annotation.NonNull;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.example.android.shushme.provider.PlaceContract;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.Result;
-import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
@@ -32,113 +34,543 @@ import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.PlaceBuffer;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class Geofencing implements ResultCallback {
+public class Geofencing implements GeofenceOperationQueue.Planner {
 
     // Constants
     public static final String TAG = Geofencing.class.getSimpleName();
-    private static final float GEOFENCE_RADIUS = 50; // 50 meters
-    private static final long GEOFENCE_TIMEOUT = 24 * 60 * 60 * 1000; // 24 hours
+    static final float GEOFENCE_RADIUS = 50; // 50 meters
+    static final long GEOFENCE_TIMEOUT = 24 * 60 * 60 * 1000; // 24 hours
+    public static final float DEFAULT_CLUSTER_DISTANCE = 100; // 100 meters
 
-    private List<Geofence> mGeofenceList;
+    /**
+     * An immutable set of Geofences together with their activation windows and the clusters
+     * they were built from. A new snapshot is swapped in whenever the places change, so an
+     * operation never sees a half built list.
+     */
+    static final class GeofenceSnapshot {
+        static final GeofenceSnapshot EMPTY = new GeofenceSnapshot(
+                new ArrayList<Geofence>(), new HashMap<String, GeofenceScheduler.Window>(),
+                new HashMap<String, GeofenceClusterer.Cluster>());
+
+        final List<Geofence> geofences;
+        // Activation window of each geofence that is not active around the clock
+        final Map<String, GeofenceScheduler.Window> windows;
+        // Cluster of each geofence
+        final Map<String, GeofenceClusterer.Cluster> clusters;
+
+        GeofenceSnapshot(List<Geofence> geofences, Map<String, GeofenceScheduler.Window> windows,
+                         Map<String, GeofenceClusterer.Cluster> clusters) {
+            this.geofences = Collections.unmodifiableList(new ArrayList<>(geofences));
+            this.windows = Collections.unmodifiableMap(new HashMap<>(windows));
+            this.clusters = Collections.unmodifiableMap(new HashMap<>(clusters));
+        }
+    }
+
+    private final AtomicReference<GeofenceSnapshot> mSnapshot;
+    private final GeofenceOperationQueue mOperationQueue;
+    private final GeofenceResultHandler mResultHandler;
+    private final AdaptiveMonitor mMonitor;
     private PendingIntent mGeofencePendingIntent;
     private GoogleApiClient mGoogleApiClient;
     private Context mContext;
+    private float mClusterDistance;
+    private boolean mBlocking;
+    // Whether an operation of this instance was planned, and the next window boundary it sets
+    // the alarm for
+    private boolean mPlanned;
+    private long mPlannedBoundary;
 
     public Geofencing(Context context, GoogleApiClient client) {
         mContext = context;
         mGoogleApiClient = client;
         mGeofencePendingIntent = null;
-        mGeofenceList = new ArrayList<>();
+        mSnapshot = new AtomicReference<>(GeofenceSnapshot.EMPTY);
+        mOperationQueue = GeofenceOperationQueue.getInstance();
+        mResultHandler = new GeofenceResultHandler(context);
+        mMonitor = new AdaptiveMonitor(context);
+        mClusterDistance = DEFAULT_CLUSTER_DISTANCE;
+    }
+
+    /***
+     * Tells whether the user turned the geofences on with the switch of {@link MainActivity}.
+     * Kept in the default SharedPreferences so that the background components can check it.
+     *
+     * @param context The context to read the preferences with
+     * @return true if the geofences should be registered
+     */
+    public static boolean isEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(context.getString(R.string.setting_enabled), false);
     }
 
     /***
-     * Registers the list of Geofences specified in mGeofenceList with Google Place Services
-     * Uses {@code #mGoogleApiClient} to connect to Google Place Services
-     * Uses {@link #getGeofencingRequest} to get the list of Geofences to be registered
-     * Uses {@link #getGeofencePendingIntent} to get the pending intent to launch the IntentService
-     * when the Geofence is triggered
-     * Triggers {@link #onResult} when the geofences have been registered successfully
+     * Sets the distance under which places are merged into one shared geofence,
+     * takes effect on the next {@link #updateGeofencesList}
+     *
+     * @param meters The merge distance in meters, 0 to give every place its own geofence
+     */
+    public void setClusterDistance(float meters) {
+        mClusterDistance = meters;
+    }
+
+    /***
+     * Makes the register and unregister calls wait for their results, for callers on a
+     * background thread that disconnect the client once done
+     *
+     * @param blocking true to wait for each result before returning
+     */
+    public void setBlocking(boolean blocking) {
+        mBlocking = blocking;
+    }
+
+    /***
+     * Registers the Geofences of the current snapshot whose activation window is open now
+     * with Google Place Services, unregisters the ones whose window is closed and sets the alarm
+     * for the next window boundary
+     * Goes through {@code #mOperationQueue}, so it waits for any call in flight and supersedes
+     * any operation still waiting
+     * Triggers {@link #onFinished} once the geofences have been registered
      */
     public void registerAllGeofences() {
-        // Check that the API client is connected and that the list has Geofences in it
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected() ||
-                mGeofenceList == null || mGeofenceList.size() == 0) {
-            return;
-        }
-        try {
-            LocationServices.GeofencingApi.addGeofences(
-                    mGoogleApiClient,
-                    getGeofencingRequest(),
-                    getGeofencePendingIntent()
-            ).setResultCallback(this);
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            Log.e(TAG, securityException.getMessage());
-        }
+        mOperationQueue.submit(GeofenceOperationQueue.OP_REGISTER, this, mBlocking);
+    }
+
+    /***
+     * Brings the registered Geofences in line with the activation windows, only registering the
+     * ones that became active since the last update
+     */
+    public void applySchedule() {
+        mOperationQueue.submit(GeofenceOperationQueue.OP_APPLY_SCHEDULE, this, mBlocking);
     }
 
     /***
      * Unregisters all the Geofences created by this app from Google Place Services
-     * Uses {@code #mGoogleApiClient} to connect to Google Place Services
-     * Uses {@link #getGeofencePendingIntent} to get the pending intent passed when
-     * registering the Geofences in the first place
-     * Triggers {@link #onResult} when the geofences have been unregistered successfully
+     * Goes through {@code #mOperationQueue}, so it waits for any call in flight and supersedes
+     * any operation still waiting
+     * Triggers {@link #onFinished} once the geofences have been unregistered
      */
     public void unRegisterAllGeofences() {
+        mOperationQueue.submit(GeofenceOperationQueue.OP_UNREGISTER, this, mBlocking);
+    }
+
+    /***
+     * Plans the Play Services calls of a queued operation against the latest snapshot
+     * Called by {@code #mOperationQueue} when the operation is about to run
+     *
+     * @param operation the operation to run
+     * @return the calls to make, one at a time
+     */
+    @Override
+    public List<GeofenceOperationQueue.Call> plan(int operation) {
+        mPlanned = false;
+        List<GeofenceOperationQueue.Call> calls = new ArrayList<>();
+        // Check that the API client is connected
         if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
-            return;
+            return calls;
+        }
+        if (operation == GeofenceOperationQueue.OP_UNREGISTER) {
+            // A register call that failed earlier must not add the geofences back
+            mResultHandler.cancelRetry();
+            calls.add(new GeofenceCall(operation) {
+                @Override
+                PendingResult<Status> startCall() {
+                    return LocationServices.GeofencingApi.removeGeofences(
+                            mGoogleApiClient,
+                            // This is the same pending intent that was used in registerGeofences
+                            getGeofencePendingIntent());
+                }
+
+                @Override
+                void onSuccess() {
+                    mResultHandler.cancelRetry();
+                    GeofenceScheduler.clearRegisteredRequestIds(mContext);
+                    GeofenceClusterer.removeClusters(mContext, null);
+                    GeofenceBroadcastReceiver.onGeofencesRemoved(mContext, null);
+                    new OutlineMonitor(mContext).reset();
+                }
+            });
+            mPlanned = true;
+            // No window boundaries to act on while disabled
+            mPlannedBoundary = -1;
+            return calls;
+        }
+
+        // Check that the snapshot has Geofences in it
+        final GeofenceSnapshot snapshot = mSnapshot.get();
+        if (snapshot.geofences.isEmpty()) return calls;
+
+        boolean full = operation == GeofenceOperationQueue.OP_REGISTER;
+        Calendar now = Calendar.getInstance();
+        Map<String, Geofence> geofences = new LinkedHashMap<>();
+        for (Geofence geofence : snapshot.geofences) {
+            geofences.put(geofence.getRequestId(), geofence);
+        }
+        // While suspended every registered Geofence is removed, and none is added
+        Set<String> active = mMonitor.getMode().suspended ? new HashSet<String>() :
+                GeofenceScheduler.getActiveRequestIds(geofences.keySet(), snapshot.windows, now);
+        Set<String> registered = GeofenceScheduler.getRegisteredRequestIds(mContext);
+
+        final List<Geofence> toAdd = new ArrayList<>();
+        for (String requestId : active) {
+            if (full || !registered.contains(requestId)) toAdd.add(geofences.get(requestId));
+        }
+        final List<String> toRemove = new ArrayList<>();
+        for (String requestId : registered) {
+            if (!active.contains(requestId)) toRemove.add(requestId);
+        }
+
+        if (!toRemove.isEmpty()) {
+            calls.add(new GeofenceCall(operation) {
+                @Override
+                PendingResult<Status> startCall() {
+                    return LocationServices.GeofencingApi.removeGeofences(mGoogleApiClient, toRemove);
+                }
+
+                @Override
+                void onSuccess() {
+                    GeofenceScheduler.removeRegisteredRequestIds(mContext, toRemove);
+                    // Closed windows, muted groups and suspended monitoring send no EXIT
+                    GeofenceBroadcastReceiver.onGeofencesRemoved(mContext, toRemove);
+                    GeofenceClusterer.removeClusters(mContext, toRemove);
+                }
+            });
         }
-        try {
-            LocationServices.GeofencingApi.removeGeofences(
-                    mGoogleApiClient,
-                    // This is the same pending intent that was used in registerGeofences
-                    getGeofencePendingIntent()
-            ).setResultCallback(this);
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            Log.e(TAG, securityException.getMessage());
+        if (!toAdd.isEmpty()) {
+            calls.add(new GeofenceCall(operation) {
+                @Override
+                PendingResult<Status> startCall() {
+                    // The user may have left a geofence while it was expired or removed, its
+                    // initial ENTER tells again whether they are inside
+                    new GeofencePresence(mContext).remove(getRequestIds(toAdd));
+                    return LocationServices.GeofencingApi.addGeofences(
+                            mGoogleApiClient,
+                            getGeofencingRequest(toAdd),
+                            getGeofencePendingIntent());
+                }
+
+                @Override
+                void onSuccess() {
+                    // Remember the members of each cluster for the receiver
+                    List<GeofenceClusterer.Cluster> clusters = new ArrayList<>();
+                    for (Geofence geofence : toAdd) {
+                        clusters.add(snapshot.clusters.get(geofence.getRequestId()));
+                    }
+                    GeofenceClusterer.saveClusters(mContext, clusters);
+                    GeofenceScheduler.addRegisteredRequestIds(mContext, getRequestIds(toAdd));
+                    if (mOperation == GeofenceOperationQueue.OP_REGISTER) {
+                        // Exit the geofences no longer registered that the user was last inside
+                        Set<String> stale = new GeofencePresence(mContext).getRequestIds();
+                        stale.removeAll(GeofenceScheduler.getRegisteredRequestIds(mContext));
+                        if (!stale.isEmpty()) GeofenceBroadcastReceiver.onGeofencesRemoved(mContext, stale);
+                    }
+                }
+            });
         }
+        mPlanned = true;
+        mPlannedBoundary = GeofenceScheduler.getNextBoundary(
+                new HashSet<>(snapshot.windows.values()), now);
+        return calls;
     }
 
+    /***
+     * Sets the alarm for the next window boundary, or for when the first registered Geofence
+     * needs renewing if that comes sooner, once an operation is done
+     * Called by {@code #mOperationQueue} once the calls planned by {@link #plan} have their results
+     *
+     * @param operation the operation that finished
+     */
+    @Override
+    public void onFinished(int operation) {
+        if (!mPlanned) return;
+        long alarm = mPlannedBoundary;
+        long renewal = GeofenceScheduler.getNextRenewal(mContext);
+        if (renewal >= 0 && (alarm < 0 || renewal < alarm)) alarm = renewal;
+        GeofenceScheduler.scheduleAlarm(mContext, alarm);
+        mPlanned = false;
+    }
+
+    /***
+     * A Play Services call of an operation. The registered request IDs are only updated once
+     * the call succeeded, so that a failed call is planned again by the retry. Every result goes
+     * to the result handler to be counted and retried or reported when it failed.
+     */
+    private abstract class GeofenceCall implements GeofenceOperationQueue.Call {
+        final int mOperation;
+
+        GeofenceCall(int operation) {
+            mOperation = operation;
+        }
+
+        abstract PendingResult<Status> startCall();
+
+        /***
+         * Updates the stored state once Play Services applied the call
+         */
+        abstract void onSuccess();
+
+        @Override
+        public PendingResult<Status> start() {
+            try {
+                return startCall();
+            } catch (SecurityException securityException) {
+                // Thrown if the app does not hold the ACCESS_FINE_LOCATION permission, which no
+                // retry can fix
+                Log.e(TAG, securityException.getMessage());
+                mResultHandler.handlePermissionFailure(mOperation);
+                return null;
+            }
+        }
+
+        @Override
+        public void onResult(Status status) {
+            if (status.isSuccess()) onSuccess();
+            mResultHandler.handle(mOperation, status);
+        }
+    }
 
     /***
      * Updates the local ArrayList of Geofences using data from the passed in list
-     * Uses the Place ID defined by the API as the Geofence object Id
      *
      * @param places the PlaceBuffer result of the getPlaceById call
      */
     public void updateGeofencesList(PlaceBuffer places) {
-        mGeofenceList = new ArrayList<>();
-        if (places == null || places.getCount() == 0) return;
-        for (Place place : places) {
-            // Read the place information from the DB cursor
-            String placeUID = place.getId();
-            double placeLat = place.getLatLng().latitude;
-            double placeLng = place.getLatLng().longitude;
-            // Build a Geofence object
-            Geofence geofence = new Geofence.Builder()
-                    .setRequestId(placeUID)
-                    .setExpirationDuration(GEOFENCE_TIMEOUT)
-                    .setCircularRegion(placeLat, placeLng, GEOFENCE_RADIUS)
-                    .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT)
-                    .build();
-            // Add it to the list
-            mGeofenceList.add(geofence);
-        }
-    }
-
-    /***
-     * Creates a GeofencingRequest object using the mGeofenceList ArrayList of Geofences
-     * Used by {@code #registerGeofences}
+        List<GeofenceClusterer.Point> points = new ArrayList<>();
+        if (places != null) {
+            for (Place place : places) {
+                points.add(new GeofenceClusterer.Point(place.getId(),
+                        place.getLatLng().latitude, place.getLatLng().longitude));
+            }
+        }
+        buildGeofences(points);
+    }
+
+    /***
+     * Updates the local ArrayList of Geofences using the place locations stored in the DB,
+     * for use when the live place data of the Places API is not at hand
+     */
+    public void loadGeofencesList() {
+        List<GeofenceClusterer.Point> points = new ArrayList<>();
+        Cursor data = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE},
+                PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE + " IS NOT NULL AND " +
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE + " IS NOT NULL",
+                null,
+                null);
+        if (data != null) {
+            while (data.moveToNext()) {
+                points.add(new GeofenceClusterer.Point(data.getString(0),
+                        data.getDouble(1), data.getDouble(2)));
+            }
+            data.close();
+        }
+        buildGeofences(points);
+    }
+
+    /***
+     * Builds the Geofences for the places. Places in the same group, sharing the same activation
+     * window and lying closer than the cluster distance share one enclosing Geofence, a place on
+     * its own uses the Place ID defined by the API as the Geofence object Id. Places of disabled
+     * groups get no Geofence. A place with a polygon outline gets its own Geofence enclosing the
+     * outline. The Geofences are as responsive as the current
+     * {@link AdaptiveMonitor} mode asks for.
+     *
+     * @param points the locations of the places
+     */
+    private void buildGeofences(List<GeofenceClusterer.Point> points) {
+        if (points.isEmpty()) {
+            mSnapshot.set(GeofenceSnapshot.EMPTY);
+            return;
+        }
+        List<Geofence> geofenceList = new ArrayList<>();
+        Map<String, GeofenceScheduler.Window> geofenceWindows = new HashMap<>();
+        Map<String, GeofenceClusterer.Cluster> geofenceClusters = new HashMap<>();
+
+        // Only places with the same group and window can share a Geofence, so that a group or
+        // window change affects whole Geofences
+        Map<String, FenceKey> placeKeys = loadPlaceKeys();
+        Map<String, PlaceOutline> outlines = loadOutlines();
+        Map<FenceKey, List<GeofenceClusterer.Point>> fenceGroups = new HashMap<>();
+        Map<FenceKey, List<GeofenceClusterer.Cluster>> fenceClusters = new HashMap<>();
+        for (GeofenceClusterer.Point point : points) {
+            FenceKey key = placeKeys.get(point.id);
+            if (key == null) key = FenceKey.DEFAULT;
+            if (!key.enabled) continue;
+            PlaceOutline outline = outlines.get(point.id);
+            if (outline != null) {
+                // An outlined place gets its own Geofence around the outline, the receiver
+                // checks the outline itself
+                getList(fenceClusters, key).add(outline.getEnclosingCircle(point.id, GEOFENCE_RADIUS));
+                continue;
+            }
+            getList(fenceGroups, key).add(point);
+        }
+        for (Map.Entry<FenceKey, List<GeofenceClusterer.Point>> entry : fenceGroups.entrySet()) {
+            getList(fenceClusters, entry.getKey()).addAll(
+                    GeofenceClusterer.cluster(entry.getValue(), mClusterDistance, GEOFENCE_RADIUS));
+        }
+
+        int responsiveness = mMonitor.getMode().responsivenessMillis;
+        for (Map.Entry<FenceKey, List<GeofenceClusterer.Cluster>> entry : fenceClusters.entrySet()) {
+            GeofenceScheduler.Window window = entry.getKey().window;
+            List<GeofenceClusterer.Cluster> clusters = entry.getValue();
+            for (GeofenceClusterer.Cluster cluster : clusters) {
+                // Build a Geofence object
+                Geofence geofence = new Geofence.Builder()
+                        .setRequestId(cluster.requestId)
+                        .setExpirationDuration(GEOFENCE_TIMEOUT)
+                        .setCircularRegion(cluster.latitude, cluster.longitude, cluster.radius)
+                        .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT)
+                        .setNotificationResponsiveness(responsiveness)
+                        .build();
+                // Add it to the list
+                geofenceList.add(geofence);
+                if (window != null) geofenceWindows.put(cluster.requestId, window);
+                geofenceClusters.put(cluster.requestId, cluster);
+            }
+        }
+        mSnapshot.set(new GeofenceSnapshot(geofenceList, geofenceWindows, geofenceClusters));
+    }
+
+    private static <T> List<T> getList(Map<FenceKey, List<T>> lists, FenceKey key) {
+        List<T> list = lists.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    /***
+     * Reads the polygon outlines of the places that have one
+     *
+     * @return the outline of each Place ID
+     */
+    private Map<String, PlaceOutline> loadOutlines() {
+        Map<String, PlaceOutline> outlines = new HashMap<>();
+        Cursor data = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_OUTLINE},
+                PlaceContract.PlaceEntry.COLUMN_PLACE_OUTLINE + " IS NOT NULL",
+                null,
+                null);
+        if (data == null) return outlines;
+        while (data.moveToNext()) {
+            PlaceOutline outline = PlaceOutline.fromBlob(data.getBlob(1));
+            if (outline != null) outlines.put(data.getString(0), outline);
+        }
+        data.close();
+        return outlines;
+    }
+
+    /***
+     * The group and activation window of a place, places with equal keys may share a Geofence
+     */
+    private static final class FenceKey {
+        static final FenceKey DEFAULT = new FenceKey(-1, true, null);
+
+        final long groupId;
+        final boolean enabled;
+        final GeofenceScheduler.Window window;
+
+        FenceKey(long groupId, boolean enabled, GeofenceScheduler.Window window) {
+            this.groupId = groupId;
+            this.enabled = enabled;
+            this.window = window;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FenceKey)) return false;
+            FenceKey other = (FenceKey) o;
+            return groupId == other.groupId && enabled == other.enabled &&
+                    (window == null ? other.window == null : window.equals(other.window));
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (groupId ^ (groupId >>> 32)) * 31 + (window == null ? 0 : window.hashCode());
+        }
+    }
+
+    /***
+     * Reads the group and activation window of the places that have either
      *
+     * @return the key of each Place ID
+     */
+    private Map<String, FenceKey> loadPlaceKeys() {
+        Map<String, FenceKey> keys = new HashMap<>();
+
+        // Find the muted groups first
+        Set<Long> disabledGroups = new HashSet<>();
+        Cursor groups = mContext.getContentResolver().query(
+                PlaceContract.GroupEntry.CONTENT_URI,
+                new String[]{PlaceContract.GroupEntry._ID},
+                PlaceContract.GroupEntry.COLUMN_GROUP_ENABLED + "=0",
+                null,
+                null);
+        if (groups != null) {
+            while (groups.moveToNext()) {
+                disabledGroups.add(groups.getLong(0));
+            }
+            groups.close();
+        }
+
+        Cursor data = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID,
+                        PlaceContract.PlaceEntry.COLUMN_GROUP_ID,
+                        PlaceContract.PlaceEntry.COLUMN_SCHEDULE_START,
+                        PlaceContract.PlaceEntry.COLUMN_SCHEDULE_END},
+                PlaceContract.PlaceEntry.COLUMN_GROUP_ID + " IS NOT NULL OR (" +
+                        PlaceContract.PlaceEntry.COLUMN_SCHEDULE_START + " IS NOT NULL AND " +
+                        PlaceContract.PlaceEntry.COLUMN_SCHEDULE_END + " IS NOT NULL)",
+                null,
+                null);
+        if (data == null) return keys;
+        while (data.moveToNext()) {
+            long groupId = data.isNull(1) ? -1 : data.getLong(1);
+            GeofenceScheduler.Window window = data.isNull(2) || data.isNull(3) ? null :
+                    new GeofenceScheduler.Window(data.getInt(2), data.getInt(3));
+            keys.put(data.getString(0),
+                    new FenceKey(groupId, !disabledGroups.contains(groupId), window));
+        }
+        data.close();
+        return keys;
+    }
+
+    private static Set<String> getRequestIds(List<Geofence> geofences) {
+        Set<String> requestIds = new HashSet<>();
+        for (Geofence geofence : geofences) {
+            requestIds.add(geofence.getRequestId());
+        }
+        return requestIds;
+    }
+
+    /***
+     * Creates a GeofencingRequest object using the passed in list of Geofences
+     * Used by {@code #plan}
+     *
+     * @param geofences the Geofences to register
      * @return the GeofencingRequest object
      */
-    private GeofencingRequest getGeofencingRequest() {
+    private GeofencingRequest getGeofencingRequest(List<Geofence> geofences) {
         GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
         builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER);
-        builder.addGeofences(mGeofenceList);
+        builder.addGeofences(geofences);
         return builder.build();
     }
 
@@ -159,10 +591,4 @@ public class Geofencing implements ResultCallback {
         return mGeofencePendingIntent;
     }
 
-    @Override
-    public void onResult(@NonNull Result result) {
-        Log.e(TAG, String.format("Error adding/removing geofence : %s",
-                result.getStatus().toString()));
-    }
-
 }
@@ -17,52 +17,83 @@ package com.example.android.shushme;
 */
 
 import android.app.NotificationManager;
+import android.app.TimePickerDialog;
+import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.LocalBroadcastManager;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.EditText;
+import android.widget.TimePicker;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import com.example.android.shushme.preview.PlacePhotoFetcher;
+import com.example.android.shushme.preview.PreviewLoader;
 import com.example.android.shushme.provider.PlaceContract;
+import com.example.android.shushme.provider.PlaceSnapshot;
+import com.example.android.shushme.search.PlaceSearchActivity;
+import com.example.android.shushme.sync.HttpSyncTransport;
+import com.example.android.shushme.sync.PlaceSyncEngine;
 import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
-import com.google.android.gms.common.GooglePlayServicesRepairableException;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
 import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
 import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.location.ActivityRecognition;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.PlaceBuffer;
 import com.google.android.gms.location.places.Places;
-import com.google.android.gms.location.places.ui.PlacePicker;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class MainActivity extends AppCompatActivity implements
         ConnectionCallbacks,
-        OnConnectionFailedListener {
+        OnConnectionFailedListener,
+        PlaceListAdapter.OnPlaceLongClickListener {
 
     // Constants
     public static final String TAG = MainActivity.class.getSimpleName();
     private static final int PERMISSIONS_REQUEST_FINE_LOCATION = 111;
-    private static final int PLACE_PICKER_REQUEST = 1;
+    private static final int PLACE_SEARCH_REQUEST = 1;
+    // Delay after the last keystroke before the search runs
+    private static final long SEARCH_DEBOUNCE_MILLIS = 250;
 
     // Member variables
     private PlaceListAdapter mAdapter;
@@ -70,6 +101,30 @@ public class MainActivity extends AppCompatActivity implements
     private boolean mIsEnabled;
     private GoogleApiClient mClient;
     private Geofencing mGeofencing;
+    private AdaptiveMonitor mAdaptiveMonitor;
+    private MotionStateSource mMotionSource;
+    private PreviewLoader mPreviewLoader;
+    private Handler mSearchHandler;
+    private String mSearchQuery;
+    private SearchTask mSearchTask;
+
+    // Shows the geofence failures that cannot be retried while the activity is visible
+    private final BroadcastReceiver mGeofenceFailureReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Already on screen, no need to show it again on the next resume
+            new GeofenceResultHandler(context).consumeFailureMessage();
+            showGeofenceFailure(intent.getStringExtra(GeofenceResultHandler.EXTRA_STATUS_MESSAGE));
+        }
+    };
+
+    // Runs the search for the latest query once the user pauses typing
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            searchPlaces(mSearchQuery);
+        }
+    };
 
     /**
      * Called when the activity is starting
@@ -85,21 +140,49 @@ public class MainActivity extends AppCompatActivity implements
         mRecyclerView = (RecyclerView) findViewById(R.id.places_list_recycler_view);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         mAdapter = new PlaceListAdapter(this, null);
+        mAdapter.setOnPlaceLongClickListener(this);
         mRecyclerView.setAdapter(mAdapter);
 
+        // Filter the list as the user types, debounced so a burst of keystrokes runs one search
+        mSearchHandler = new Handler();
+        EditText searchEditText = (EditText) findViewById(R.id.search_edit_text);
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mSearchQuery = s.toString().trim();
+                mSearchHandler.removeCallbacks(mSearchRunnable);
+                mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DEBOUNCE_MILLIS);
+            }
+        });
+
         // Initialize the switch state and Handle enable/disable switch change
         Switch onOffSwitch = (Switch) findViewById(R.id.enable_switch);
-        mIsEnabled = getPreferences(MODE_PRIVATE).getBoolean(getString(R.string.setting_enabled), false);
+        migrateEnabledSetting();
+        mIsEnabled = Geofencing.isEnabled(this);
         onOffSwitch.setChecked(mIsEnabled);
         onOffSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
+                SharedPreferences.Editor editor =
+                        PreferenceManager.getDefaultSharedPreferences(MainActivity.this).edit();
                 editor.putBoolean(getString(R.string.setting_enabled), isChecked);
                 mIsEnabled = isChecked;
                 editor.commit();
-                if (isChecked) mGeofencing.registerAllGeofences();
-                else mGeofencing.unRegisterAllGeofences();
+                if (isChecked) {
+                    mGeofencing.registerAllGeofences();
+                    mAdaptiveMonitor.start(mMotionSource);
+                } else {
+                    mGeofencing.unRegisterAllGeofences();
+                    mAdaptiveMonitor.stop(mMotionSource);
+                }
             }
 
         });
@@ -112,11 +195,221 @@ public class MainActivity extends AppCompatActivity implements
                 .addOnConnectionFailedListener(this)
                 .addApi(LocationServices.API)
                 .addApi(Places.GEO_DATA_API)
+                .addApi(ActivityRecognition.API)
                 .enableAutoManage(this, this)
                 .build();
 
         mGeofencing = new Geofencing(this, mClient);
+        mAdaptiveMonitor = new AdaptiveMonitor(this);
+        mMotionSource = new ActivityRecognitionMotionSource(this, mClient);
+
+        // Show a photo of each place on its card, loaded in the background
+        mPreviewLoader = new PreviewLoader(this, new PlacePhotoFetcher(mClient),
+                getResources().getDimensionPixelSize(R.dimen.place_preview_size),
+                R.drawable.ic_place_accent_24dp);
+        mAdapter.setPreviewLoader(mPreviewLoader);
+
+    }
+
+    /***
+     * Moves the enabled setting from the preferences of this activity, where older versions kept
+     * it, to the default ones the background components read it from
+     */
+    private void migrateEnabledSetting() {
+        String key = getString(R.string.setting_enabled);
+        SharedPreferences oldPreferences = getPreferences(MODE_PRIVATE);
+        if (!oldPreferences.contains(key)) return;
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putBoolean(key, oldPreferences.getBoolean(key, false))
+                .apply();
+        oldPreferences.edit().remove(key).apply();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPreviewLoader.release();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.action_groups) {
+            showGroupsDialog();
+            return true;
+        }
+        if (id == R.id.action_export_places || id == R.id.action_import_places) {
+            new SnapshotTask(this, id == R.id.action_export_places).execute();
+            return true;
+        }
+        if (id == R.id.action_import_outlines) {
+            new OutlineImportTask(this).execute();
+            return true;
+        }
+        if (id == R.id.action_sync_places) {
+            String url = getString(R.string.sync_server_url);
+            if (TextUtils.isEmpty(url)) {
+                Toast.makeText(this, getString(R.string.sync_not_configured_message),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                new SyncTask(this, url).execute();
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /***
+     * Returns a file of the app's external files dir, or of its internal one when there is no
+     * external storage
+     *
+     * @param context The context to find the dirs with
+     * @param nameId  The string resource with the name of the file
+     */
+    private static File getAppFile(Context context, int nameId) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) dir = context.getFilesDir();
+        return new File(dir, context.getString(nameId));
+    }
+
+    /***
+     * Imports the place outlines from the KML file in the app's external files dir, off the
+     * main thread. Only holds a weak reference to the activity, so a rotation does not leak it.
+     */
+    private static class OutlineImportTask extends AsyncTask<Void, Void, Integer> {
+
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final File mFile;
+
+        OutlineImportTask(MainActivity activity) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mFile = getAppFile(activity, R.string.outline_file_name);
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                return OutlineKmlImporter.importFrom(mContext.getContentResolver(), mFile);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Outline import failed [%s]", e.getMessage()));
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (count == null) {
+                Toast.makeText(mContext, mContext.getString(R.string.outlines_failed_message),
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            Toast.makeText(mContext, mContext.getString(R.string.outlines_imported_message, count),
+                    Toast.LENGTH_LONG).show();
+            // Register the outlined places with their new circles
+            MainActivity activity = mActivity.get();
+            if (count > 0 && activity != null && !activity.isFinishing()) {
+                activity.refreshPlacesData();
+            }
+        }
+    }
+
+    /***
+     * Exchanges the place changes with the sync server off the main thread. Only holds a weak
+     * reference to the activity, so a slow server does not leak it.
+     */
+    private static class SyncTask extends AsyncTask<Void, Void, Integer> {
+
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final String mUrl;
 
+        SyncTask(MainActivity activity, String url) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mUrl = url;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                return new PlaceSyncEngine(mContext, new HttpSyncTransport(new URL(mUrl))).sync();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Place sync failed [%s]", e.getMessage()));
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (count == null) {
+                Toast.makeText(mContext, mContext.getString(R.string.sync_failed_message),
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            Toast.makeText(mContext, mContext.getString(R.string.places_synced_message, count),
+                    Toast.LENGTH_LONG).show();
+            MainActivity activity = mActivity.get();
+            if (count > 0 && activity != null && !activity.isFinishing()) {
+                activity.refreshPlacesData();
+            }
+        }
+    }
+
+    /***
+     * Exports the saved places to, or imports them from, the snapshot file in the app's external
+     * files dir, off the main thread since large place sets take a few seconds. Only holds a
+     * weak reference to the activity, so a rotation does not leak it.
+     */
+    private static class SnapshotTask extends AsyncTask<Void, Void, Integer> {
+
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final boolean mExport;
+        private final File mFile;
+
+        SnapshotTask(MainActivity activity, boolean export) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mExport = export;
+            mFile = getAppFile(activity, R.string.snapshot_file_name);
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                if (mExport) return PlaceSnapshot.exportTo(mContext.getContentResolver(), mFile);
+                return PlaceSnapshot.importFrom(mContext.getContentResolver(), mFile);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Place snapshot failed [%s]", e.getMessage()));
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (count == null) {
+                Toast.makeText(mContext, mContext.getString(R.string.snapshot_failed_message),
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            if (mExport) {
+                Toast.makeText(mContext, mContext.getString(R.string.places_exported_message,
+                        count, mFile.getAbsolutePath()), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(mContext, mContext.getString(R.string.places_imported_message,
+                        count), Toast.LENGTH_LONG).show();
+                MainActivity activity = mActivity.get();
+                if (activity != null && !activity.isFinishing()) activity.refreshPlacesData();
+            }
+        }
     }
 
     /***
@@ -127,6 +420,8 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onConnected(@Nullable Bundle connectionHint) {
         refreshPlacesData();
+        // Motion updates do not survive a reboot or an update of Play Services, ask again
+        if (mIsEnabled) mAdaptiveMonitor.start(mMotionSource);
         Log.i(TAG, "API Client Connection Successful!");
     }
 
@@ -161,21 +456,362 @@ public class MainActivity extends AppCompatActivity implements
 
         if (data == null || data.getCount() == 0) return;
         List<String> guids = new ArrayList<String>();
+        // Places saved before their details were stored, these are not searchable yet
+        final Set<String> unnamedGuids = new HashSet<String>();
+        int nameIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME);
+        int latitudeIndex = data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE);
         while (data.moveToNext()) {
-            guids.add(data.getString(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ID)));
+            String guid = data.getString(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ID));
+            guids.add(guid);
+            if (data.isNull(nameIndex) || data.isNull(latitudeIndex)) unnamedGuids.add(guid);
         }
+        data.close();
         PendingResult<PlaceBuffer> placeResult = Places.GeoDataApi.getPlaceById(mClient,
                 guids.toArray(new String[guids.size()]));
         placeResult.setResultCallback(new ResultCallback<PlaceBuffer>() {
             @Override
             public void onResult(@NonNull PlaceBuffer places) {
+                if (!unnamedGuids.isEmpty()) savePlaceDetails(places, unnamedGuids);
                 mAdapter.swapPlaces(places);
+                // Places added or renamed since the last search may match the query
+                if (!TextUtils.isEmpty(mSearchQuery)) searchPlaces(mSearchQuery);
                 mGeofencing.updateGeofencesList(places);
                 if (mIsEnabled) mGeofencing.registerAllGeofences();
             }
         });
     }
 
+    /***
+     * Stores the name, address and location of the given places so that they can be searched
+     * and exported
+     *
+     * @param places The live place data
+     * @param guids  The Place IDs of the places whose details are missing from the DB
+     */
+    private void savePlaceDetails(PlaceBuffer places, Set<String> guids) {
+        for (Place place : places) {
+            if (!guids.contains(place.getId())) continue;
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, place.getName().toString());
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, place.getAddress().toString());
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE, place.getLatLng().latitude);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE, place.getLatLng().longitude);
+            getContentResolver().update(PlaceContract.PlaceEntry.CONTENT_URI,
+                    contentValues,
+                    PlaceContract.PlaceEntry.COLUMN_PLACE_ID + "=?",
+                    new String[]{place.getId()});
+        }
+    }
+
+    /***
+     * Filters the list of places to those matching the query, using the full-text search of
+     * the places provider. An empty query shows all the places again.
+     *
+     * @param query The text typed in the search box
+     */
+    private void searchPlaces(String query) {
+        if (mSearchTask != null) mSearchTask.cancel(false);
+        mSearchTask = null;
+        if (TextUtils.isEmpty(query)) {
+            mAdapter.setFilter(null);
+            return;
+        }
+        mSearchTask = new SearchTask(this, query);
+        mSearchTask.execute();
+    }
+
+    /***
+     * Runs a full-text search of the places off the main thread and filters the list with the
+     * result, unless the user has typed on since or the activity is gone
+     */
+    private static class SearchTask extends AsyncTask<Void, Void, Set<String>> {
+
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final String mQuery;
+
+        SearchTask(MainActivity activity, String query) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mQuery = query;
+        }
+
+        @Override
+        protected Set<String> doInBackground(Void... params) {
+            Uri uri = PlaceContract.PlaceSearchEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PlaceContract.PlaceSearchEntry.QUERY_PARAMETER, mQuery)
+                    .build();
+            Cursor data = mContext.getContentResolver().query(
+                    uri,
+                    new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID},
+                    null,
+                    null,
+                    null);
+            Set<String> guids = new HashSet<String>();
+            if (data != null) {
+                while (data.moveToNext()) {
+                    guids.add(data.getString(0));
+                }
+                data.close();
+            }
+            return guids;
+        }
+
+        @Override
+        protected void onPostExecute(Set<String> guids) {
+            MainActivity activity = mActivity.get();
+            if (activity == null || activity.mSearchTask != this) return;
+            activity.mSearchTask = null;
+            activity.mAdapter.setFilter(guids);
+        }
+    }
+
+    /***
+     * Called when a place of the list is long clicked, lets the user choose the hours during
+     * which the place is silenced
+     *
+     * @param placeId   The Place ID of the clicked place
+     * @param placeName The name of the clicked place
+     */
+    @Override
+    public void onPlaceLongClick(final String placeId, String placeName) {
+        new AlertDialog.Builder(this)
+                .setTitle(placeName)
+                .setItems(R.array.place_options, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which == 0) {
+                            saveSchedule(placeId, null, null);
+                        } else if (which == 1) {
+                            pickScheduleStart(placeId);
+                        } else {
+                            pickGroup(placeId);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void pickScheduleStart(final String placeId) {
+        TimePickerDialog dialog = new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+            @Override
+            public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
+                pickScheduleEnd(placeId, hourOfDay * 60 + minute);
+            }
+        }, 9, 0, android.text.format.DateFormat.is24HourFormat(this));
+        dialog.setTitle(R.string.schedule_start);
+        dialog.show();
+    }
+
+    private void pickScheduleEnd(final String placeId, final int startMinute) {
+        TimePickerDialog dialog = new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+            @Override
+            public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
+                saveSchedule(placeId, startMinute, hourOfDay * 60 + minute);
+            }
+        }, 17, 0, android.text.format.DateFormat.is24HourFormat(this));
+        dialog.setTitle(R.string.schedule_end);
+        dialog.show();
+    }
+
+    /***
+     * Lets the user move a place into an existing or a new group, or out of its group
+     *
+     * @param placeId The Place ID of the place
+     */
+    private void pickGroup(final String placeId) {
+        final List<Long> groupIds = new ArrayList<>();
+        final List<String> items = new ArrayList<>();
+        Cursor data = getContentResolver().query(PlaceContract.GroupEntry.CONTENT_URI,
+                new String[]{PlaceContract.GroupEntry._ID, PlaceContract.GroupEntry.COLUMN_GROUP_NAME},
+                null, null, PlaceContract.GroupEntry.COLUMN_GROUP_NAME);
+        if (data != null) {
+            while (data.moveToNext()) {
+                groupIds.add(data.getLong(0));
+                items.add(data.getString(1));
+            }
+            data.close();
+        }
+        items.add(getString(R.string.new_group));
+        items.add(getString(R.string.no_group));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.choose_group)
+                .setItems(items.toArray(new String[items.size()]), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which < groupIds.size()) {
+                            saveGroup(placeId, groupIds.get(which));
+                        } else if (which == groupIds.size()) {
+                            createGroup(placeId);
+                        } else {
+                            saveGroup(placeId, null);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void createGroup(final String placeId) {
+        final EditText nameEditText = new EditText(this);
+        nameEditText.setHint(R.string.group_name_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.new_group)
+                .setView(nameEditText)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String name = nameEditText.getText().toString().trim();
+                        if (TextUtils.isEmpty(name)) return;
+                        ContentValues contentValues = new ContentValues();
+                        contentValues.put(PlaceContract.GroupEntry.COLUMN_GROUP_NAME, name);
+                        Uri groupUri = getContentResolver().insert(
+                                PlaceContract.GroupEntry.CONTENT_URI, contentValues);
+                        if (groupUri != null) saveGroup(placeId, ContentUris.parseId(groupUri));
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /***
+     * Moves a place into a group and rebuilds the Geofences
+     *
+     * @param placeId The Place ID of the place
+     * @param groupId The _id of the group, null to take the place out of its group
+     */
+    private void saveGroup(String placeId, Long groupId) {
+        ContentValues contentValues = new ContentValues();
+        if (groupId == null) {
+            contentValues.putNull(PlaceContract.PlaceEntry.COLUMN_GROUP_ID);
+        } else {
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_GROUP_ID, groupId);
+        }
+        getContentResolver().update(PlaceContract.PlaceEntry.CONTENT_URI,
+                contentValues,
+                PlaceContract.PlaceEntry.COLUMN_PLACE_ID + "=?",
+                new String[]{placeId});
+        refreshPlacesData();
+    }
+
+    /***
+     * Shows the groups with their enabled state, checking or unchecking one enables or mutes
+     * all of its places at once
+     */
+    private void showGroupsDialog() {
+        final List<Long> groupIds = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Boolean> enabled = new ArrayList<>();
+        Cursor data = getContentResolver().query(PlaceContract.GroupEntry.CONTENT_URI,
+                new String[]{PlaceContract.GroupEntry._ID,
+                        PlaceContract.GroupEntry.COLUMN_GROUP_NAME,
+                        PlaceContract.GroupEntry.COLUMN_GROUP_ENABLED},
+                null, null, PlaceContract.GroupEntry.COLUMN_GROUP_NAME);
+        if (data != null) {
+            while (data.moveToNext()) {
+                groupIds.add(data.getLong(0));
+                names.add(data.getString(1));
+                enabled.add(data.getInt(2) != 0);
+            }
+            data.close();
+        }
+        if (groupIds.isEmpty()) {
+            Toast.makeText(this, getString(R.string.no_groups_message), Toast.LENGTH_LONG).show();
+            return;
+        }
+        boolean[] checked = new boolean[enabled.size()];
+        for (int i = 0; i < checked.length; i++) checked[i] = enabled.get(i);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.groups)
+                .setMultiChoiceItems(names.toArray(new String[names.size()]), checked,
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                                setGroupEnabled(groupIds.get(which), isChecked);
+                            }
+                        })
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /***
+     * Enables or mutes a group. The group is a single row, and the Geofences of its places are
+     * added or removed in one batched call, leaving the other Geofences alone.
+     *
+     * @param groupId The _id of the group
+     * @param enabled true to monitor the places of the group, false to mute them
+     */
+    private void setGroupEnabled(long groupId, boolean enabled) {
+        new GroupEnableTask(this, groupId, enabled, mIsEnabled).execute();
+    }
+
+    /***
+     * Stores the enabled state of a group off the main thread, then rebuilds the Geofences from
+     * the stored locations, no need for a Places API round trip. The Play Services calls are
+     * made back on the main thread, where the client of the activity expects them.
+     */
+    private static class GroupEnableTask extends AsyncTask<Void, Void, Void> {
+
+        private final WeakReference<MainActivity> mActivity;
+        private final Context mContext;
+        private final long mGroupId;
+        private final boolean mEnabled;
+        private final boolean mApply;
+
+        GroupEnableTask(MainActivity activity, long groupId, boolean enabled, boolean apply) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mGroupId = groupId;
+            mEnabled = enabled;
+            mApply = apply;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(PlaceContract.GroupEntry.COLUMN_GROUP_ENABLED, mEnabled ? 1 : 0);
+            mContext.getContentResolver().update(
+                    ContentUris.withAppendedId(PlaceContract.GroupEntry.CONTENT_URI, mGroupId),
+                    contentValues, null, null);
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (!mApply) return;
+            MainActivity activity = mActivity.get();
+            if (activity == null || activity.isFinishing()) {
+                // The service rebuilds the Geofences with a client of its own
+                mContext.startService(new Intent(mContext, GeofenceScheduleService.class));
+                return;
+            }
+            activity.mGeofencing.loadGeofencesList();
+            activity.mGeofencing.applySchedule();
+        }
+    }
+
+    /***
+     * Stores the daily activation window of a place and rebuilds the Geofences
+     *
+     * @param placeId     The Place ID of the place
+     * @param startMinute The start of the window in minutes since midnight, null for always active
+     * @param endMinute   The end of the window in minutes since midnight, null for always active
+     */
+    private void saveSchedule(String placeId, Integer startMinute, Integer endMinute) {
+        ContentValues contentValues = new ContentValues();
+        if (startMinute == null || endMinute == null || startMinute.equals(endMinute)) {
+            contentValues.putNull(PlaceContract.PlaceEntry.COLUMN_SCHEDULE_START);
+            contentValues.putNull(PlaceContract.PlaceEntry.COLUMN_SCHEDULE_END);
+        } else {
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_SCHEDULE_START, startMinute);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_SCHEDULE_END, endMinute);
+        }
+        getContentResolver().update(PlaceContract.PlaceEntry.CONTENT_URI,
+                contentValues,
+                PlaceContract.PlaceEntry.COLUMN_PLACE_ID + "=?",
+                new String[]{placeId});
+        refreshPlacesData();
+    }
+
     /***
      * Button Click event handler to handle clicking the "Add new location" Button
      *
@@ -187,47 +823,22 @@ public class MainActivity extends AppCompatActivity implements
             Toast.makeText(this, getString(R.string.need_location_permission_message), Toast.LENGTH_LONG).show();
             return;
         }
-        try {
-            // Start a new Activity for the Place Picker API, this will trigger {@code #onActivityResult}
-            // when a place is selected or with the user cancels.
-            PlacePicker.IntentBuilder builder = new PlacePicker.IntentBuilder();
-            Intent i = builder.build(this);
-            startActivityForResult(i, PLACE_PICKER_REQUEST);
-        } catch (GooglePlayServicesRepairableException e) {
-            Log.e(TAG, String.format("GooglePlayServices Not Available [%s]", e.getMessage()));
-        } catch (GooglePlayServicesNotAvailableException e) {
-            Log.e(TAG, String.format("GooglePlayServices Not Available [%s]", e.getMessage()));
-        } catch (Exception e) {
-            Log.e(TAG, String.format("PlacePicker Exception: %s", e.getMessage()));
-        }
+        // Start the place search Activity, this will trigger {@code #onActivityResult}
+        // when places were added or when the user cancels.
+        Intent intent = new Intent(this, PlaceSearchActivity.class);
+        startActivityForResult(intent, PLACE_SEARCH_REQUEST);
     }
 
 
     /***
-     * Called when the Place Picker Activity returns back with a selected place (or after canceling)
+     * Called when the place search Activity returns back after adding places (or after canceling)
      *
      * @param requestCode The request code passed when calling startActivityForResult
      * @param resultCode  The result code specified by the second activity
      * @param data        The Intent that carries the result data.
      */
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == PLACE_PICKER_REQUEST && resultCode == RESULT_OK) {
-            Place place = PlacePicker.getPlace(this, data);
-            if (place == null) {
-                Log.i(TAG, "No place selected");
-                return;
-            }
-
-            // Extract the place information from the API
-            String placeName = place.getName().toString();
-            String placeAddress = place.getAddress().toString();
-            String placeID = place.getId();
-
-            // Insert a new place into DB
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ID, placeID);
-            getContentResolver().insert(PlaceContract.PlaceEntry.CONTENT_URI, contentValues);
-
+        if (requestCode == PLACE_SEARCH_REQUEST && resultCode == RESULT_OK) {
             // Get live data information
             refreshPlacesData();
         }
@@ -257,6 +868,23 @@ public class MainActivity extends AppCompatActivity implements
             ringerPermissions.setChecked(true);
             ringerPermissions.setEnabled(false);
         }
+
+        // Show any geofence failure that happened while the activity was not visible
+        LocalBroadcastManager.getInstance(this).registerReceiver(mGeofenceFailureReceiver,
+                new IntentFilter(GeofenceResultHandler.ACTION_GEOFENCE_FAILURE));
+        String failure = new GeofenceResultHandler(this).consumeFailureMessage();
+        if (failure != null) showGeofenceFailure(failure);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mGeofenceFailureReceiver);
+    }
+
+    private void showGeofenceFailure(String statusMessage) {
+        Toast.makeText(this, getString(R.string.geofence_failure_message, statusMessage),
+                Toast.LENGTH_LONG).show();
     }
 
     public void onRingerPermissionsClicked(View view) {
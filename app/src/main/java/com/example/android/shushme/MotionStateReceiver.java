@@ -0,0 +1,40 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.android.gms.location.ActivityRecognitionResult;
+
+/**
+ * Receives the activity updates requested by {@link ActivityRecognitionMotionSource}
+ */
+public class MotionStateReceiver extends BroadcastReceiver {
+
+    public static final String TAG = MotionStateReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ActivityRecognitionResult.hasResult(intent)) return;
+        int state = ActivityRecognitionMotionSource.toMotionState(
+                ActivityRecognitionResult.extractResult(intent));
+        if (state == MotionStateSource.STATE_UNKNOWN) return;
+        new AdaptiveMonitor(context).onMotionStateChanged(state);
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+/**
+ * Reports how the user is moving, so that geofence monitoring can be relaxed while they sit
+ * still and tightened while they walk around.
+ */
+public interface MotionStateSource {
+
+    // Motion states
+    int STATE_UNKNOWN = 0;
+    int STATE_STILL = 1;
+    int STATE_ON_FOOT = 2;
+    int STATE_IN_VEHICLE = 3;
+
+    /**
+     * Receives the detected motion state
+     */
+    interface Listener {
+        /**
+         * @param state One of the STATE_ constants, never STATE_UNKNOWN
+         */
+        void onMotionStateChanged(int state);
+    }
+
+    /**
+     * Starts detecting the motion state, or changes the rate of a running detection
+     *
+     * @param intervalMillis How often to detect the state, a hint the source may stretch
+     */
+    void start(long intervalMillis);
+
+    /**
+     * Stops detecting the motion state
+     */
+    void stop();
+}
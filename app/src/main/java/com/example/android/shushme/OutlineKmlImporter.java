@@ -0,0 +1,177 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Xml;
+
+import com.example.android.shushme.provider.PlaceContract;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads place outlines from the Polygon elements of a KML file.
+ * <p>
+ * Each Placemark is matched to a saved place by a "placeId" ExtendedData value if it has one,
+ * otherwise by its name. Only the outer boundary of the first Polygon of a Placemark is used,
+ * Placemarks without a Polygon are skipped.
+ */
+public class OutlineKmlImporter {
+
+    public static final String TAG = OutlineKmlImporter.class.getSimpleName();
+    private static final String PLACE_ID_DATA_NAME = "placeId";
+
+    private OutlineKmlImporter() {
+    }
+
+    /**
+     * Stores the outlines of the KML file on the matching places, all in one transaction
+     *
+     * @param resolver The resolver to update the places with
+     * @param file     The KML file
+     * @return The number of places given an outline
+     * @throws IOException if the file could not be read or parsed
+     */
+    public static int importFrom(ContentResolver resolver, File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, null);
+            String name = null;
+            String placeId = null;
+            String coordinates = null;
+            String dataName = null;
+            boolean inOuterBoundary = false;
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+                 event = parser.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    switch (parser.getName()) {
+                        case "Placemark":
+                            name = null;
+                            placeId = null;
+                            coordinates = null;
+                            break;
+                        case "name":
+                            if (name == null) name = parser.nextText().trim();
+                            break;
+                        case "Data":
+                            dataName = parser.getAttributeValue(null, "name");
+                            break;
+                        case "value":
+                            if (PLACE_ID_DATA_NAME.equals(dataName)) placeId = parser.nextText().trim();
+                            break;
+                        case "outerBoundaryIs":
+                            inOuterBoundary = true;
+                            break;
+                        case "coordinates":
+                            if (inOuterBoundary && coordinates == null) coordinates = parser.nextText();
+                            break;
+                    }
+                } else if (event == XmlPullParser.END_TAG) {
+                    switch (parser.getName()) {
+                        case "outerBoundaryIs":
+                            inOuterBoundary = false;
+                            break;
+                        case "Data":
+                            dataName = null;
+                            break;
+                        case "Placemark":
+                            PlaceOutline outline = parseCoordinates(coordinates);
+                            if (outline != null && (placeId != null || name != null)) {
+                                operations.add(buildUpdate(placeId, name, outline));
+                            }
+                            break;
+                    }
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed KML", e);
+        } finally {
+            in.close();
+        }
+
+        if (operations.isEmpty()) return 0;
+        try {
+            int updated = 0;
+            for (ContentProviderResult result : resolver.applyBatch(PlaceContract.AUTHORITY, operations)) {
+                if (result.count != null) updated += result.count;
+            }
+            return updated;
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Unable to store the outlines", e);
+        }
+    }
+
+    private static ContentProviderOperation buildUpdate(String placeId, String name,
+                                                        PlaceOutline outline) {
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newUpdate(PlaceContract.PlaceEntry.CONTENT_URI)
+                        .withValue(PlaceContract.PlaceEntry.COLUMN_PLACE_OUTLINE, outline.toBlob());
+        if (placeId != null) {
+            builder.withSelection(PlaceContract.PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{placeId});
+        } else {
+            builder.withSelection(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME + "=?", new String[]{name});
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parses the whitespace separated "longitude,latitude[,altitude]" tuples of a KML ring
+     *
+     * @return The outline, or null if the ring has fewer than 3 distinct vertices
+     */
+    static PlaceOutline parseCoordinates(String coordinates) {
+        if (coordinates == null) return null;
+        List<double[]> vertices = new ArrayList<>();
+        for (String tuple : coordinates.trim().split("\\s+")) {
+            String[] values = tuple.split(",");
+            if (values.length < 2) continue;
+            try {
+                vertices.add(new double[]{Double.parseDouble(values[1]), Double.parseDouble(values[0])});
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        // KML repeats the first vertex to close the ring
+        int count = vertices.size();
+        if (count > 1 && vertices.get(0)[0] == vertices.get(count - 1)[0] &&
+                vertices.get(0)[1] == vertices.get(count - 1)[1]) {
+            count--;
+        }
+        if (count < 3) return null;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = vertices.get(i)[0];
+            longitudes[i] = vertices.get(i)[1];
+        }
+        return new PlaceOutline(latitudes, longitudes);
+    }
+}
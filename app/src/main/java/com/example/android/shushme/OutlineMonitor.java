@@ -0,0 +1,249 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.location.Location;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Narrows the circular geofences of outlined places down to their polygon outlines.
+ * <p>
+ * Entering the circle of an outlined place only counts once the user is inside the outline.
+ * Since no further geofence alert comes while they stay inside the circle, location updates
+ * are requested until they leave it again, and each update is checked against the outlines
+ * of the places whose circle they are in. Places without an outline pass straight through.
+ * <p>
+ * A fix only decides a place when its whole accuracy circle lies on one side of the outline,
+ * otherwise the user is left on the side they were. While the user is in a circle but not yet
+ * in its outline the updates are at high accuracy, so that thin outlines such as a platform
+ * can be told apart from the track next to it. Once the user is inside every watched outline
+ * they only need to notice leaving, so the updates slow down to balanced power, whose fixes
+ * are accurate enough away from the edges, and while the user is still they stop altogether.
+ * The update interval follows the {@link AdaptiveMonitor} mode.
+ */
+public class OutlineMonitor {
+
+    // Constants
+    public static final String TAG = OutlineMonitor.class.getSimpleName();
+    public static final String ACTION_OUTLINE_LOCATION =
+            "com.example.android.shushme.action.OUTLINE_LOCATION";
+    private static final long UPDATE_INTERVAL = 30 * 1000; // 30 seconds
+    private static final long SETTLED_UPDATE_INTERVAL = 5 * 60 * 1000; // 5 minutes
+    private static final long FASTEST_UPDATE_INTERVAL = 10 * 1000; // 10 seconds
+
+    private static final String PREFERENCES_NAME = "outline_monitor";
+    // Outlined places whose circle the user is in
+    private static final String KEY_WATCHED = "watched";
+    // Outlined places whose outline the user is in
+    private static final String KEY_INSIDE = "inside";
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    public OutlineMonitor(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Filters the places of a geofence alert through their outlines
+     *
+     * @param placeIds   The places whose geofence triggered
+     * @param transition Geofence.GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+     * @param location   The location that triggered the alert, may be null
+     * @return The places for which the transition takes effect now
+     */
+    public Set<String> onGeofenceTransition(Set<String> placeIds, int transition, Location location) {
+        Map<String, PlaceOutline> outlines = loadOutlines(placeIds);
+        if (outlines.isEmpty()) return placeIds;
+
+        Set<String> watched = getSet(KEY_WATCHED);
+        Set<String> inside = getSet(KEY_INSIDE);
+        boolean wasWatching = !watched.isEmpty();
+        boolean wasSettled = inside.containsAll(watched);
+        Set<String> effective = new LinkedHashSet<>();
+        for (String placeId : placeIds) {
+            PlaceOutline outline = outlines.get(placeId);
+            if (outline == null) {
+                effective.add(placeId);
+            } else if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+                watched.add(placeId);
+                if (isDecisive(outline, location) &&
+                        outline.contains(location.getLatitude(), location.getLongitude())) {
+                    if (inside.add(placeId)) effective.add(placeId);
+                }
+            } else {
+                watched.remove(placeId);
+                if (inside.remove(placeId)) effective.add(placeId);
+            }
+        }
+        mPreferences.edit()
+                .putStringSet(KEY_WATCHED, watched)
+                .putStringSet(KEY_INSIDE, inside)
+                .apply();
+        if (wasWatching != !watched.isEmpty() || wasSettled != inside.containsAll(watched)) {
+            requestWatchUpdate();
+        }
+        return effective;
+    }
+
+    /**
+     * Checks a location update against the outlines of the places whose circle the user is in
+     *
+     * @param location The location update
+     * @param entered  Receives the places whose outline the user entered
+     * @param exited   Receives the places whose outline the user left
+     */
+    public void onLocation(Location location, Collection<String> entered, Collection<String> exited) {
+        if (location == null) return;
+        Set<String> watched = getSet(KEY_WATCHED);
+        if (watched.isEmpty()) {
+            // Updates still arriving after the last circle was left
+            requestWatchUpdate();
+            return;
+        }
+        Set<String> inside = getSet(KEY_INSIDE);
+        boolean wasSettled = inside.containsAll(watched);
+        Map<String, PlaceOutline> outlines = loadOutlines(watched);
+        for (String placeId : watched) {
+            PlaceOutline outline = outlines.get(placeId);
+            if (outline == null || !isDecisive(outline, location)) continue;
+            if (outline.contains(location.getLatitude(), location.getLongitude())) {
+                if (inside.add(placeId)) entered.add(placeId);
+            } else if (inside.remove(placeId)) {
+                exited.add(placeId);
+            }
+        }
+        mPreferences.edit().putStringSet(KEY_INSIDE, inside).apply();
+        if (wasSettled != inside.containsAll(watched)) requestWatchUpdate();
+    }
+
+    /**
+     * Requests location updates while the user moves in the circle of any outlined place and
+     * removes them otherwise, waiting for the result. Called by {@link GeofenceScheduleService}
+     * whenever the watched places or the motion state change.
+     *
+     * @param client A connected client with the LocationServices API
+     */
+    public void updateLocationUpdates(GoogleApiClient client) {
+        PendingIntent pendingIntent = getLocationIntent();
+        Set<String> watched = getSet(KEY_WATCHED);
+        AdaptiveMonitor monitor = new AdaptiveMonitor(mContext);
+        try {
+            // No outline can be crossed without moving, the next motion change asks again
+            if (watched.isEmpty() || monitor.getMotionState() == MotionStateSource.STATE_STILL) {
+                LocationServices.FusedLocationApi.removeLocationUpdates(client, pendingIntent).await();
+            } else {
+                boolean settled = getSet(KEY_INSIDE).containsAll(watched);
+                long interval = settled ? SETTLED_UPDATE_INTERVAL :
+                        Math.max(UPDATE_INTERVAL, monitor.getMode().responsivenessMillis);
+                LocationRequest request = LocationRequest.create()
+                        .setPriority(settled ? LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY :
+                                LocationRequest.PRIORITY_HIGH_ACCURACY)
+                        .setInterval(interval)
+                        .setFastestInterval(FASTEST_UPDATE_INTERVAL);
+                LocationServices.FusedLocationApi.requestLocationUpdates(client, request,
+                        pendingIntent).await();
+            }
+        } catch (SecurityException securityException) {
+            Log.e(TAG, securityException.getMessage());
+        }
+    }
+
+    /**
+     * Forgets which circles and outlines the user is in, such as when the geofences are
+     * unregistered
+     */
+    public void reset() {
+        boolean wasWatching = !getSet(KEY_WATCHED).isEmpty();
+        mPreferences.edit().clear().apply();
+        if (wasWatching) requestWatchUpdate();
+    }
+
+    /**
+     * @return true if the location tells which side of the outline the user is on, that is if
+     * its accuracy circle does not reach across an edge
+     */
+    private static boolean isDecisive(PlaceOutline outline, Location location) {
+        if (location == null) return false;
+        return !location.hasAccuracy() || location.getAccuracy() <
+                outline.distanceToEdge(location.getLatitude(), location.getLongitude());
+    }
+
+    private void requestWatchUpdate() {
+        Intent intent = new Intent(mContext, GeofenceScheduleService.class);
+        intent.setAction(GeofenceScheduleService.ACTION_WATCH_OUTLINES);
+        mContext.startService(intent);
+    }
+
+    private PendingIntent getLocationIntent() {
+        Intent intent = new Intent(mContext, GeofenceBroadcastReceiver.class);
+        intent.setAction(ACTION_OUTLINE_LOCATION);
+        return PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private Set<String> getSet(String key) {
+        return new HashSet<>(mPreferences.getStringSet(key, new HashSet<String>()));
+    }
+
+    /**
+     * @return The outline of each of the places that has one
+     */
+    private Map<String, PlaceOutline> loadOutlines(Set<String> placeIds) {
+        Map<String, PlaceOutline> outlines = new HashMap<>();
+        if (placeIds.isEmpty()) return outlines;
+        StringBuilder selection = new StringBuilder(PlaceContract.PlaceEntry.COLUMN_PLACE_OUTLINE +
+                " IS NOT NULL AND " + PlaceContract.PlaceEntry.COLUMN_PLACE_ID + " IN (");
+        String[] selectionArgs = placeIds.toArray(new String[placeIds.size()]);
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        Cursor data = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_ID,
+                        PlaceContract.PlaceEntry.COLUMN_PLACE_OUTLINE},
+                selection.toString(),
+                selectionArgs,
+                null);
+        if (data == null) return outlines;
+        while (data.moveToNext()) {
+            PlaceOutline outline = PlaceOutline.fromBlob(data.getBlob(1));
+            if (outline != null) outlines.put(data.getString(0), outline);
+        }
+        data.close();
+        return outlines;
+    }
+}
@@ -18,17 +18,36 @@ package com.example.android.shushme;
 
 import android.content.Context;
 import android.support.v7.widget.RecyclerView;
+import android.text.method.LinkMovementMethod;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.example.android.shushme.preview.PreviewLoader;
+import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.PlaceBuffer;
 
+import java.util.Set;
+
 public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.PlaceViewHolder> {
 
     private Context mContext;
     private PlaceBuffer mPlaces;
+    // Place IDs to show when a search filter is applied, null shows every place
+    private Set<String> mFilter;
+    // Positions in mPlaces of the places currently shown
+    private int[] mPositions;
+    private OnPlaceLongClickListener mLongClickListener;
+    private PreviewLoader mPreviewLoader;
+
+    /**
+     * Receives long clicks on the places of the list
+     */
+    public interface OnPlaceLongClickListener {
+        void onPlaceLongClick(String placeId, String placeName);
+    }
 
     /**
      * Constructor using the context and the db cursor
@@ -38,6 +57,7 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
     public PlaceListAdapter(Context context, PlaceBuffer places) {
         this.mContext = context;
         this.mPlaces = places;
+        rebuildPositions();
     }
 
     /**
@@ -63,20 +83,80 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
      */
     @Override
     public void onBindViewHolder(PlaceViewHolder holder, int position) {
-        String placeName = mPlaces.get(position).getName().toString();
-        String placeAddress = mPlaces.get(position).getAddress().toString();
+        Place place = mPlaces.get(mPositions[position]);
+        String placeName = place.getName().toString();
+        String placeAddress = place.getAddress().toString();
         holder.nameTextView.setText(placeName);
         holder.addressTextView.setText(placeAddress);
+        if (mPreviewLoader != null) mPreviewLoader.load(place.getId(), holder.previewImageView,
+                holder.attributionTextView);
+    }
+
+    /**
+     * Called when a view holder is recycled, stops loading the preview of its former place
+     *
+     * @param holder The recycled PlaceViewHolder
+     */
+    @Override
+    public void onViewRecycled(PlaceViewHolder holder) {
+        if (mPreviewLoader != null) mPreviewLoader.cancel(holder.previewImageView);
     }
 
     public void swapPlaces(PlaceBuffer newPlaces){
         mPlaces = newPlaces;
+        rebuildPositions();
         if (mPlaces != null) {
             // Force the RecyclerView to refresh
             this.notifyDataSetChanged();
         }
     }
 
+    public void setOnPlaceLongClickListener(OnPlaceLongClickListener listener) {
+        mLongClickListener = listener;
+    }
+
+    /**
+     * Sets the loader of the place previews, the cards show the placeholder icon without one
+     *
+     * @param loader The loader, or null
+     */
+    public void setPreviewLoader(PreviewLoader loader) {
+        mPreviewLoader = loader;
+        this.notifyDataSetChanged();
+    }
+
+    /**
+     * Restricts the list to the given places, as found by a search
+     *
+     * @param placeIds The Place IDs to show, or null to show all the places again
+     */
+    public void setFilter(Set<String> placeIds) {
+        mFilter = placeIds;
+        rebuildPositions();
+        this.notifyDataSetChanged();
+    }
+
+    /**
+     * Maps the shown positions onto the positions in the PlaceBuffer, skipping the places
+     * excluded by the current filter
+     */
+    private void rebuildPositions() {
+        int count = mPlaces == null ? 0 : mPlaces.getCount();
+        int[] positions = new int[count];
+        int shown = 0;
+        for (int i = 0; i < count; i++) {
+            if (mFilter == null || mFilter.contains(mPlaces.get(i).getId())) {
+                positions[shown++] = i;
+            }
+        }
+        if (shown < count) {
+            int[] filtered = new int[shown];
+            System.arraycopy(positions, 0, filtered, 0, shown);
+            positions = filtered;
+        }
+        mPositions = positions;
+    }
+
     /**
      * Returns the number of items in the cursor
      *
@@ -85,21 +165,37 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
     @Override
     public int getItemCount() {
         if(mPlaces==null) return 0;
-        return mPlaces.getCount();
+        return mPositions.length;
     }
 
     /**
      * PlaceViewHolder class for the recycler view item
      */
-    class PlaceViewHolder extends RecyclerView.ViewHolder {
+    class PlaceViewHolder extends RecyclerView.ViewHolder implements View.OnLongClickListener {
 
         TextView nameTextView;
         TextView addressTextView;
+        ImageView previewImageView;
+        TextView attributionTextView;
 
         public PlaceViewHolder(View itemView) {
             super(itemView);
             nameTextView = (TextView) itemView.findViewById(R.id.name_text_view);
             addressTextView = (TextView) itemView.findViewById(R.id.address_text_view);
+            previewImageView = (ImageView) itemView.findViewById(R.id.preview_image_view);
+            attributionTextView = (TextView) itemView.findViewById(R.id.attribution_text_view);
+            // Photo attributions may link to their authors
+            attributionTextView.setMovementMethod(LinkMovementMethod.getInstance());
+            itemView.setOnLongClickListener(this);
+        }
+
+        @Override
+        public boolean onLongClick(View v) {
+            int position = getAdapterPosition();
+            if (mLongClickListener == null || position == RecyclerView.NO_POSITION) return false;
+            Place place = mPlaces.get(mPositions[position]);
+            mLongClickListener.onPlaceLongClick(place.getId(), place.getName().toString());
+            return true;
         }
 
     }
@@ -0,0 +1,175 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+
+/**
+ * The polygon outline of a place, for buildings a circle fits badly such as a station platform.
+ * <p>
+ * Outlines are stored as packed blobs of little-endian int32 latitude and longitude pairs in
+ * units of 1e-7 degrees, 8 bytes per vertex. The ring is implicitly closed. The containment
+ * test checks the bounding box first and only then casts a ray across the edges, which takes
+ * a few microseconds even for outlines with hundreds of vertices.
+ */
+public class PlaceOutline {
+
+    private static final double E7 = 1e7;
+    private static final int BYTES_PER_VERTEX = 8;
+
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double mMinLatitude;
+    private final double mMaxLatitude;
+    private final double mMinLongitude;
+    private final double mMaxLongitude;
+
+    /**
+     * @param latitudes  The latitudes of the vertices
+     * @param longitudes The longitudes of the vertices, as many as latitudes and at least 3
+     */
+    public PlaceOutline(double[] latitudes, double[] longitudes) {
+        if (latitudes.length != longitudes.length || latitudes.length < 3) {
+            throw new IllegalArgumentException("An outline needs at least 3 vertices");
+        }
+        mLatitudes = latitudes.clone();
+        mLongitudes = longitudes.clone();
+        double minLatitude = Double.MAX_VALUE;
+        double maxLatitude = -Double.MAX_VALUE;
+        double minLongitude = Double.MAX_VALUE;
+        double maxLongitude = -Double.MAX_VALUE;
+        for (int i = 0; i < mLatitudes.length; i++) {
+            minLatitude = Math.min(minLatitude, mLatitudes[i]);
+            maxLatitude = Math.max(maxLatitude, mLatitudes[i]);
+            minLongitude = Math.min(minLongitude, mLongitudes[i]);
+            maxLongitude = Math.max(maxLongitude, mLongitudes[i]);
+        }
+        mMinLatitude = minLatitude;
+        mMaxLatitude = maxLatitude;
+        mMinLongitude = minLongitude;
+        mMaxLongitude = maxLongitude;
+    }
+
+    /**
+     * @param blob The packed vertices made by {@link #toBlob}
+     * @return The outline, or null if the blob holds no usable outline
+     */
+    public static PlaceOutline fromBlob(byte[] blob) {
+        if (blob == null || blob.length % BYTES_PER_VERTEX != 0) return null;
+        int count = blob.length / BYTES_PER_VERTEX;
+        if (count < 3) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = buffer.getInt() / E7;
+            longitudes[i] = buffer.getInt() / E7;
+        }
+        return new PlaceOutline(latitudes, longitudes);
+    }
+
+    /**
+     * @return The vertices packed for the DB
+     */
+    public byte[] toBlob() {
+        ByteBuffer buffer = ByteBuffer.allocate(mLatitudes.length * BYTES_PER_VERTEX)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < mLatitudes.length; i++) {
+            buffer.putInt((int) Math.round(mLatitudes[i] * E7));
+            buffer.putInt((int) Math.round(mLongitudes[i] * E7));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Tells whether a location lies inside the outline, using the even-odd rule
+     *
+     * @param latitude  The latitude of the location
+     * @param longitude The longitude of the location
+     * @return true if inside
+     */
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < mMinLatitude || latitude > mMaxLatitude ||
+                longitude < mMinLongitude || longitude > mMaxLongitude) {
+            return false;
+        }
+        // Cast a ray towards increasing longitude and count the edges it crosses
+        boolean inside = false;
+        int count = mLatitudes.length;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            double latitudeI = mLatitudes[i];
+            double latitudeJ = mLatitudes[j];
+            if ((latitudeI > latitude) != (latitudeJ > latitude)) {
+                double crossing = mLongitudes[i] + (latitude - latitudeI) *
+                        (mLongitudes[j] - mLongitudes[i]) / (latitudeJ - latitudeI);
+                if (longitude < crossing) inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Measures how far a location is from the nearest edge of the outline, on a flat projection
+     * around the location, which is accurate enough at the scale of a building
+     *
+     * @param latitude  The latitude of the location
+     * @param longitude The longitude of the location
+     * @return The distance in meters, whichever side of the edge the location is on
+     */
+    public double distanceToEdge(double latitude, double longitude) {
+        double metersPerDegree = Math.toRadians(GeofenceClusterer.EARTH_RADIUS);
+        double metersPerLongitude = metersPerDegree * Math.cos(Math.toRadians(latitude));
+        double nearest = Double.MAX_VALUE;
+        int count = mLatitudes.length;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            // The edge from vertex j to vertex i, with the location at the origin
+            double x = (mLongitudes[j] - longitude) * metersPerLongitude;
+            double y = (mLatitudes[j] - latitude) * metersPerDegree;
+            double dx = (mLongitudes[i] - longitude) * metersPerLongitude - x;
+            double dy = (mLatitudes[i] - latitude) * metersPerDegree - y;
+            double lengthSquared = dx * dx + dy * dy;
+            double t = lengthSquared == 0 ? 0 :
+                    Math.max(0, Math.min(1, -(x * dx + y * dy) / lengthSquared));
+            nearest = Math.min(nearest, Math.hypot(x + t * dx, y + t * dy));
+        }
+        return nearest;
+    }
+
+    /**
+     * Builds the circular geofence region enclosing the outline, centered on its bounding box.
+     * For the roughly symmetric outlines of buildings this is close to the smallest enclosing
+     * circle.
+     *
+     * @param requestId The request ID of the geofence
+     * @param minRadius The smallest radius to use, in meters
+     * @return The enclosing circle, standing for the place alone
+     */
+    public GeofenceClusterer.Cluster getEnclosingCircle(String requestId, float minRadius) {
+        GeofenceClusterer.Point center = new GeofenceClusterer.Point(requestId,
+                (mMinLatitude + mMaxLatitude) / 2, (mMinLongitude + mMaxLongitude) / 2);
+        double farthest = 0;
+        for (int i = 0; i < mLatitudes.length; i++) {
+            farthest = Math.max(farthest, GeofenceClusterer.distance(center,
+                    new GeofenceClusterer.Point(null, mLatitudes[i], mLongitudes[i])));
+        }
+        return new GeofenceClusterer.Cluster(requestId, center.latitude, center.longitude,
+                (float) Math.max(Math.ceil(farthest), minRadius),
+                Collections.singletonList(requestId));
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.text.TextUtils;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.location.Geofence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coordinates the notifications posted for geofence transitions. Each place gets its own
+ * notification, grouped under a summary that lists the most recent transitions.
+ * <p>
+ * A place is re-notified at most once per minimum update interval. Transitions arriving sooner
+ * are recorded and a single deferred flush is scheduled, so a burst of transitions along a fence
+ * edge ends up as one update. The state is kept in SharedPreferences since the receiver does
+ * not outlive a broadcast.
+ */
+public class TransitionNotifier {
+
+    // Constants
+    public static final String TAG = TransitionNotifier.class.getSimpleName();
+    public static final String ACTION_FLUSH_NOTIFICATIONS =
+            "com.example.android.shushme.action.FLUSH_NOTIFICATIONS";
+    // Minimum time between two notification updates for the same place
+    public static final long MIN_UPDATE_INTERVAL = 60 * 1000; // 1 minute
+
+    private static final String PREFERENCES_NAME = "transition_notifications";
+    private static final String KEY_PENDING = "pending";
+    // When the flush alarm is set to go off, in elapsed realtime
+    private static final String KEY_NEXT_FLUSH = "next_flush";
+    private static final String KEY_HISTORY = "history";
+    private static final String KEY_POSTED_PREFIX = "posted_";
+    private static final String KEY_TRANSITION_PREFIX = "transition_";
+
+    private static final String GROUP_KEY = "com.example.android.shushme.TRANSITIONS";
+    private static final int SUMMARY_NOTIFICATION_ID = 0;
+    // The place notifications are told apart by their Place ID tag
+    private static final int PLACE_NOTIFICATION_ID = 1;
+    private static final int HISTORY_SIZE = 5;
+    private static final String HISTORY_SEPARATOR = "\n";
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    public TransitionNotifier(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records a transition for the triggering places and posts the notifications that are due,
+     * deferring the rest to a single scheduled flush
+     *
+     * @param placeIds       The request IDs of the triggering geofences
+     * @param transitionType The geofence transition type, can be Geofence.GEOFENCE_TRANSITION_ENTER
+     *                       or Geofence.GEOFENCE_TRANSITION_EXIT
+     */
+    public void onTransition(Collection<String> placeIds, int transitionType) {
+        long now = SystemClock.elapsedRealtime();
+        SharedPreferences.Editor editor = mPreferences.edit();
+        Set<String> pending = new HashSet<>(mPreferences.getStringSet(KEY_PENDING, new HashSet<String>()));
+        List<String> due = new ArrayList<>();
+        List<String> history = readHistory();
+        long nextFlush = Long.MAX_VALUE;
+
+        for (String placeId : placeIds) {
+            editor.putInt(KEY_TRANSITION_PREFIX + placeId, transitionType);
+            history.add(0, historyLine(placeId, transitionType));
+            long dueTime = getDueTime(placeId, now);
+            if (dueTime <= now) {
+                due.add(placeId);
+                pending.remove(placeId);
+            } else {
+                pending.add(placeId);
+                nextFlush = Math.min(nextFlush, dueTime);
+            }
+        }
+        editor.putStringSet(KEY_PENDING, pending);
+        writeHistory(editor, history);
+        editor.apply();
+
+        if (!due.isEmpty()) post(due, now);
+        if (nextFlush != Long.MAX_VALUE) scheduleFlush(nextFlush);
+    }
+
+    /**
+     * Posts the notifications of the deferred places that are due, and schedules the flush of
+     * the ones that are not yet
+     */
+    public void flushPending() {
+        long now = SystemClock.elapsedRealtime();
+        Set<String> pending = new HashSet<>(mPreferences.getStringSet(KEY_PENDING, new HashSet<String>()));
+        List<String> due = new ArrayList<>();
+        long nextFlush = Long.MAX_VALUE;
+        for (String placeId : pending) {
+            long dueTime = getDueTime(placeId, now);
+            if (dueTime <= now) {
+                due.add(placeId);
+            } else {
+                nextFlush = Math.min(nextFlush, dueTime);
+            }
+        }
+        pending.removeAll(due);
+        // The alarm that started this flush has gone off
+        mPreferences.edit()
+                .putStringSet(KEY_PENDING, pending)
+                .remove(KEY_NEXT_FLUSH)
+                .apply();
+        if (!due.isEmpty()) post(due, now);
+        if (nextFlush != Long.MAX_VALUE) scheduleFlush(nextFlush);
+    }
+
+    /**
+     * @return The earliest time the notification of a place may be updated again, in elapsed
+     * realtime
+     */
+    private long getDueTime(String placeId, long now) {
+        long posted = mPreferences.getLong(KEY_POSTED_PREFIX + placeId, Long.MIN_VALUE);
+        // Also treat a clock reset after a reboot as due
+        if (posted == Long.MIN_VALUE || posted > now) return now;
+        return posted + MIN_UPDATE_INTERVAL;
+    }
+
+    /**
+     * Issues one notification per place followed by a single update of the group summary. A
+     * single place needs no summary, its own notification already says it all.
+     */
+    private void post(List<String> placeIds, long now) {
+        NotificationManager notificationManager =
+                (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        PendingIntent contentIntent = getContentIntent();
+        SharedPreferences.Editor editor = mPreferences.edit();
+
+        for (String placeId : placeIds) {
+            int transitionType = mPreferences.getInt(KEY_TRANSITION_PREFIX + placeId,
+                    Geofence.GEOFENCE_TRANSITION_ENTER);
+            NotificationCompat.Builder builder = buildTransitionNotification(transitionType)
+                    .setContentText(getPlaceName(placeId))
+                    .setContentIntent(contentIntent)
+                    .setGroup(GROUP_KEY)
+                    .setAutoCancel(true);
+            notificationManager.notify(placeId, PLACE_NOTIFICATION_ID, builder.build());
+            editor.putLong(KEY_POSTED_PREFIX + placeId, now);
+        }
+        editor.apply();
+        if (placeIds.size() < 2) return;
+
+        // Summarize the recent transitions of all the places
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (String line : readHistory()) {
+            style.addLine(line);
+        }
+        NotificationCompat.Builder summary = new NotificationCompat.Builder(mContext)
+                .setSmallIcon(R.drawable.ic_volume_off_white_24dp)
+                .setContentTitle(mContext.getString(R.string.app_name))
+                .setContentText(mContext.getString(R.string.touch_to_relaunch))
+                .setStyle(style)
+                .setContentIntent(contentIntent)
+                .setGroup(GROUP_KEY)
+                .setGroupSummary(true)
+                .setAutoCancel(true);
+        notificationManager.notify(SUMMARY_NOTIFICATION_ID, summary.build());
+    }
+
+    /**
+     * Uses different icon drawables and titles for the different transition types
+     */
+    private NotificationCompat.Builder buildTransitionNotification(int transitionType) {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
+        if (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT) {
+            builder.setSmallIcon(R.drawable.ic_volume_up_white_24dp)
+                    .setLargeIcon(BitmapFactory.decodeResource(mContext.getResources(),
+                            R.drawable.ic_volume_up_white_24dp))
+                    .setContentTitle(mContext.getString(R.string.back_to_normal));
+        } else {
+            builder.setSmallIcon(R.drawable.ic_volume_off_white_24dp)
+                    .setLargeIcon(BitmapFactory.decodeResource(mContext.getResources(),
+                            R.drawable.ic_volume_off_white_24dp))
+                    .setContentTitle(mContext.getString(R.string.silent_mode_activated));
+        }
+        return builder;
+    }
+
+    /**
+     * Schedules the deferred flush. The alarm uses a fixed PendingIntent, so scheduling again
+     * replaces the earlier alarm rather than adding another one. The alarm is therefore only
+     * ever moved earlier, a flush still pending for an earlier time is kept.
+     */
+    private void scheduleFlush(long triggerAtMillis) {
+        long scheduled = mPreferences.getLong(KEY_NEXT_FLUSH, -1);
+        Intent intent = new Intent(mContext, GeofenceBroadcastReceiver.class);
+        intent.setAction(ACTION_FLUSH_NOTIFICATIONS);
+        // The PendingIntent is gone after a reboot, along with the alarm
+        if (scheduled >= 0 && scheduled <= triggerAtMillis && PendingIntent.getBroadcast(mContext,
+                0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        mPreferences.edit().putLong(KEY_NEXT_FLUSH, triggerAtMillis).apply();
+        PendingIntent flushIntent = PendingIntent.getBroadcast(mContext, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, triggerAtMillis, flushIntent);
+    }
+
+    /**
+     * Creates an explicit content Intent that starts the main Activity, with the main Activity
+     * as the parent on its back stack
+     */
+    private PendingIntent getContentIntent() {
+        Intent notificationIntent = new Intent(mContext, MainActivity.class);
+        TaskStackBuilder stackBuilder = TaskStackBuilder.create(mContext);
+        stackBuilder.addParentStack(MainActivity.class);
+        stackBuilder.addNextIntent(notificationIntent);
+        return stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private String historyLine(String placeId, int transitionType) {
+        return mContext.getString(transitionType == Geofence.GEOFENCE_TRANSITION_EXIT ?
+                R.string.back_to_normal : R.string.silent_mode_activated) +
+                " - " + getPlaceName(placeId);
+    }
+
+    private List<String> readHistory() {
+        String history = mPreferences.getString(KEY_HISTORY, "");
+        if (TextUtils.isEmpty(history)) return new ArrayList<>();
+        return new ArrayList<>(Arrays.asList(history.split(HISTORY_SEPARATOR)));
+    }
+
+    private void writeHistory(SharedPreferences.Editor editor, List<String> history) {
+        if (history.size() > HISTORY_SIZE) history = history.subList(0, HISTORY_SIZE);
+        editor.putString(KEY_HISTORY, TextUtils.join(HISTORY_SEPARATOR, history));
+    }
+
+    /**
+     * Looks up the stored name of the place, falling back to the Place ID
+     */
+    private String getPlaceName(String placeId) {
+        Cursor data = mContext.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                new String[]{PlaceContract.PlaceEntry.COLUMN_PLACE_NAME},
+                PlaceContract.PlaceEntry.COLUMN_PLACE_ID + "=?",
+                new String[]{placeId},
+                null);
+        if (data == null) return placeId;
+        try {
+            if (data.moveToFirst() && !data.isNull(0)) return data.getString(0);
+            return placeId;
+        } finally {
+            data.close();
+        }
+    }
+}
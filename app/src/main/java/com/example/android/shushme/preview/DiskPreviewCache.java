@@ -0,0 +1,185 @@
+package com.example.android.shushme.preview;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Size-bounded cache of encoded previews in a directory, one file per key holding the
+ * attributions of the preview ahead of the image, so that neither is ever kept without the other.
+ * <p>
+ * Reads touch the file so that the least recently used ones go first when the cache is trimmed.
+ * Files are written under a temporary name and renamed, so a reader never sees a partial file.
+ * Called from the loader threads only, the size is tracked in memory after a first scan.
+ */
+class DiskPreviewCache {
+
+    // Constants
+    private static final String TAG = DiskPreviewCache.class.getSimpleName();
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private long mSize = -1;
+
+    /**
+     * @param directory The directory to keep the previews in, created if needed
+     * @param maxBytes  The size to trim the cache down to
+     */
+    DiskPreviewCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return The cached preview, or null if there is none
+     */
+    synchronized PreviewFetcher.Preview get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) return null;
+        try {
+            PreviewFetcher.Preview preview = decode(readFully(file));
+            file.setLastModified(System.currentTimeMillis());
+            return preview;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Unable to read preview %s : %s", key, e.getMessage()));
+            return null;
+        }
+    }
+
+    synchronized void put(String key, PreviewFetcher.Preview preview) {
+        ensureScanned();
+        File file = getFile(key);
+        File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+        try {
+            byte[] data = encode(preview);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            long previous = file.length();
+            if (!temp.renameTo(file)) throw new IOException("Rename failed");
+            mSize += data.length - previous;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Unable to write preview %s : %s", key, e.getMessage()));
+            temp.delete();
+            return;
+        }
+        if (mSize > mMaxBytes) trim();
+    }
+
+    private void ensureScanned() {
+        if (mSize >= 0) return;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, String.format("Unable to create %s", mDirectory));
+        }
+        mSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            // Left over by a write that was interrupted
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                mSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache is down to three quarters of its
+     * size, so that a full cache is not trimmed again on every write
+     */
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        long target = mMaxBytes * 3 / 4;
+        for (int i = 0; i < files.length && mSize > target; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) mSize -= length;
+        }
+    }
+
+    private File getFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every platform has SHA-1 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(PreviewFetcher.Preview preview) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(preview.data.length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(preview.attributions);
+        out.write(preview.data);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PreviewFetcher.Preview decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String attributions = in.readUTF();
+        byte[] data = new byte[in.available()];
+        in.readFully(data);
+        return new PreviewFetcher.Preview(data, attributions);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
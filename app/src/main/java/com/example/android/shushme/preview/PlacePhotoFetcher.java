@@ -0,0 +1,83 @@
+package com.example.android.shushme.preview;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.places.PlacePhotoMetadata;
+import com.google.android.gms.location.places.PlacePhotoMetadataBuffer;
+import com.google.android.gms.location.places.PlacePhotoMetadataResult;
+import com.google.android.gms.location.places.PlacePhotoResult;
+import com.google.android.gms.location.places.Places;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Previews made of the first photo of each place, as returned by the Places GeoDataApi, along
+ * with the attributions the Places API requires to be shown with the photo
+ */
+public class PlacePhotoFetcher implements PreviewFetcher {
+
+    // Constants
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int JPEG_QUALITY = 85;
+
+    private final GoogleApiClient mClient;
+
+    /**
+     * @param client A client with the Places.GEO_DATA_API added
+     */
+    public PlacePhotoFetcher(GoogleApiClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public Preview fetch(String placeId, int width, int height) throws IOException {
+        if (!mClient.isConnected()) throw new IOException("Client not connected");
+        PlacePhotoMetadataResult metadataResult = Places.GeoDataApi.getPlacePhotos(mClient, placeId)
+                .await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!metadataResult.getStatus().isSuccess()) {
+            throw new IOException(String.format("Photo lookup failed : %s", metadataResult.getStatus()));
+        }
+        PlacePhotoMetadataBuffer photos = metadataResult.getPhotoMetadata();
+        Bitmap bitmap;
+        CharSequence attributions;
+        try {
+            if (photos.getCount() == 0) return null;
+            PlacePhotoMetadata photo = photos.get(0);
+            // Read before the buffer is released
+            attributions = photo.getAttributions();
+            PlacePhotoResult photoResult = photo.getScaledPhoto(mClient, width, height)
+                    .await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!photoResult.getStatus().isSuccess()) {
+                throw new IOException(String.format("Photo download failed : %s", photoResult.getStatus()));
+            }
+            bitmap = photoResult.getBitmap();
+        } finally {
+            photos.release();
+        }
+        if (bitmap == null) return null;
+        // Re-encode so that the disk cache holds the small scaled photo rather than a Bitmap
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        bitmap.recycle();
+        return new Preview(out.toByteArray(), attributions == null ? "" : attributions.toString());
+    }
+}
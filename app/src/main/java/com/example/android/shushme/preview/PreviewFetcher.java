@@ -0,0 +1,52 @@
+package com.example.android.shushme.preview;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.IOException;
+
+/**
+ * Source of the preview images shown on the place cards, so that the Places API can be swapped
+ * for a local fake
+ */
+public interface PreviewFetcher {
+
+    /**
+     * A preview image along with the attributions its source requires to be shown with it
+     */
+    class Preview {
+        public final byte[] data;
+        // HTML, empty if the image needs no attribution
+        public final String attributions;
+
+        public Preview(byte[] data, String attributions) {
+            this.data = data;
+            this.attributions = attributions;
+        }
+    }
+
+    /**
+     * Fetches the preview of a place, called on a background thread
+     *
+     * @param placeId The Place ID
+     * @param width   The width the preview is shown at, in pixels
+     * @param height  The height the preview is shown at, in pixels
+     * @return The encoded image, at least about as large as asked for if the source allows, and
+     * its attributions, or null if the place has no preview
+     * @throws IOException if the preview could not be fetched right now
+     */
+    Preview fetch(String placeId, int width, int height) throws IOException;
+}
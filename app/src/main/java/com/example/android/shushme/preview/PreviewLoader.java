@@ -0,0 +1,312 @@
+package com.example.android.shushme.preview;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.Html;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the place previews into the ImageViews of the place cards, and their attributions into
+ * the TextViews next to them.
+ * <p>
+ * Decoded previews are kept in a memory LRU cache sized by bytes, encoded ones in a disk cache,
+ * and only previews in neither are fetched. Cards asking for a preview already being loaded
+ * join that load instead of starting another one. Previews are decoded downsampled to the card
+ * size in RGB_565 on low priority threads, so the main thread only ever sets a ready Bitmap.
+ * Queued loads run newest first, since the cards last bound are the ones on screen, and a load
+ * no card waits for anymore is dropped before it starts. Loads finishing after {@link #release}
+ * are dropped.
+ * <p>
+ * All the methods are called on the main thread.
+ */
+public class PreviewLoader {
+
+    // Constants
+    public static final String TAG = PreviewLoader.class.getSimpleName();
+    private static final int THREAD_COUNT = 2;
+    private static final String DISK_CACHE_DIRECTORY = "place_previews";
+    private static final long DISK_CACHE_BYTES = 10 * 1024 * 1024; // 10 MB
+    // Share of the app memory class given to the decoded previews
+    private static final int MEMORY_CACHE_DIVISOR = 8;
+
+    /**
+     * A decoded preview and its attributions
+     */
+    private static class DecodedPreview {
+        final Bitmap bitmap;
+        final CharSequence attributions;
+
+        DecodedPreview(Bitmap bitmap, CharSequence attributions) {
+            this.bitmap = bitmap;
+            this.attributions = attributions;
+        }
+    }
+
+    /**
+     * A load and the views waiting for it
+     */
+    private class Job implements Runnable {
+        final String placeId;
+        final List<ImageView> targets = new ArrayList<>();
+        Future<?> future;
+        volatile boolean started;
+
+        Job(String placeId) {
+            this.placeId = placeId;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            DecodedPreview decoded = null;
+            boolean missing = false;
+            try {
+                String diskKey = placeId + "_" + mSize;
+                PreviewFetcher.Preview preview = mDiskCache.get(diskKey);
+                if (preview == null) {
+                    preview = mFetcher.fetch(placeId, mSize, mSize);
+                    if (preview != null) mDiskCache.put(diskKey, preview);
+                }
+                if (preview == null) {
+                    missing = true;
+                } else {
+                    Bitmap bitmap = decode(preview.data, mSize);
+                    if (bitmap != null) {
+                        decoded = new DecodedPreview(bitmap, fromHtml(preview.attributions));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Completed either way, so that the waiting views are not left behind
+                Log.e(TAG, String.format("Unable to load preview of %s : %s", placeId, e.getMessage()));
+            }
+            final DecodedPreview result = decoded;
+            final boolean noPreview = missing;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    complete(Job.this, result, noPreview);
+                }
+            });
+        }
+    }
+
+    private final PreviewFetcher mFetcher;
+    private final int mSize;
+    private final int mPlaceholderResId;
+    private final DiskPreviewCache mDiskCache;
+    private final LruCache<String, DecodedPreview> mMemoryCache;
+    // Places known to have no preview, not asked for again while the loader lives
+    private final Set<String> mMissing = new HashSet<>();
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final Map<ImageView, Job> mTargets = new HashMap<>();
+    private final Map<ImageView, TextView> mAttributionViews = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private boolean mReleased;
+
+    /**
+     * @param context          The context
+     * @param fetcher          The source of the previews not cached yet
+     * @param size             The width and height of the preview views, in pixels
+     * @param placeholderResId The drawable shown while loading and for places without a preview
+     */
+    public PreviewLoader(Context context, PreviewFetcher fetcher, int size, int placeholderResId) {
+        mFetcher = fetcher;
+        mSize = size;
+        mPlaceholderResId = placeholderResId;
+        mDiskCache = new DiskPreviewCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY),
+                DISK_CACHE_BYTES);
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        mMemoryCache = new LruCache<String, DecodedPreview>(memoryClass * 1024 * 1024 / MEMORY_CACHE_DIVISOR) {
+            @Override
+            protected int sizeOf(String key, DecodedPreview preview) {
+                return preview.bitmap.getByteCount();
+            }
+        };
+        // A deque taken from the end, so that the last queued load runs first
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                },
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Keep decoding from competing with the main thread for the CPU
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, TAG);
+                    }
+                });
+    }
+
+    /**
+     * Shows the preview of a place in a view, replacing whatever the view was loading before
+     *
+     * @param placeId         The Place ID
+     * @param view            The view, showing the placeholder until the preview is ready
+     * @param attributionView The view showing the attributions of the preview, hidden while
+     *                        there are none
+     */
+    public void load(String placeId, ImageView view, TextView attributionView) {
+        Job current = mTargets.get(view);
+        if (current != null && current.placeId.equals(placeId)) return;
+        cancel(view);
+        mAttributionViews.put(view, attributionView);
+
+        DecodedPreview preview = mMemoryCache.get(placeId);
+        if (preview != null) {
+            showPreview(view, preview);
+            return;
+        }
+        showPlaceholder(view);
+        if (mMissing.contains(placeId) || mReleased) return;
+
+        Job job = mJobs.get(placeId);
+        if (job == null) {
+            job = new Job(placeId);
+            mJobs.put(placeId, job);
+            job.future = mExecutor.submit(job);
+        }
+        job.targets.add(view);
+        mTargets.put(view, job);
+    }
+
+    /**
+     * Stops loading into a view, such as when its card is recycled. The load itself is dropped
+     * if no other view waits for it and it has not started yet.
+     *
+     * @param view The view
+     */
+    public void cancel(ImageView view) {
+        mAttributionViews.remove(view);
+        Job job = mTargets.remove(view);
+        if (job == null) return;
+        job.targets.remove(view);
+        // A load already running is left to finish into the caches, cards may bind it again
+        if (job.targets.isEmpty() && !job.started) {
+            job.future.cancel(false);
+            mExecutor.remove((FutureTask<?>) job.future);
+            mJobs.remove(job.placeId);
+        }
+    }
+
+    /**
+     * Drops every load and the memory cache, for when the screen goes away
+     */
+    public void release() {
+        mReleased = true;
+        mExecutor.shutdownNow();
+        mJobs.clear();
+        mTargets.clear();
+        mAttributionViews.clear();
+        mMemoryCache.evictAll();
+    }
+
+    private void complete(Job job, DecodedPreview preview, boolean noPreview) {
+        // A load still running on release posts its result anyway
+        if (mReleased) return;
+        if (mJobs.get(job.placeId) == job) mJobs.remove(job.placeId);
+        if (preview != null) mMemoryCache.put(job.placeId, preview);
+        if (noPreview) mMissing.add(job.placeId);
+        for (ImageView view : job.targets) {
+            if (mTargets.get(view) != job) continue;
+            mTargets.remove(view);
+            if (preview != null) showPreview(view, preview);
+        }
+        job.targets.clear();
+    }
+
+    private void showPreview(ImageView view, DecodedPreview preview) {
+        view.setScaleType(ImageView.ScaleType.CENTER_CROP);
+        view.setImageBitmap(preview.bitmap);
+        TextView attributionView = mAttributionViews.get(view);
+        if (attributionView == null) return;
+        attributionView.setText(preview.attributions);
+        attributionView.setVisibility(TextUtils.isEmpty(preview.attributions) ? View.GONE : View.VISIBLE);
+    }
+
+    private void showPlaceholder(ImageView view) {
+        view.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+        view.setImageResource(mPlaceholderResId);
+        TextView attributionView = mAttributionViews.get(view);
+        if (attributionView != null) attributionView.setVisibility(View.GONE);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static CharSequence fromHtml(String html) {
+        // Html.fromHtml(String, int) only exists from API 24
+        return TextUtils.isEmpty(html) ? "" : Html.fromHtml(html);
+    }
+
+    /**
+     * Decodes an image at the largest power of two subsampling that still covers the size, the
+     * view scales the rest of the way
+     *
+     * @return The bitmap, or null if the data is not a supported image
+     */
+    static Bitmap decode(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= size &&
+                options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // Photos and maps have no transparency, half the memory of ARGB_8888
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+}
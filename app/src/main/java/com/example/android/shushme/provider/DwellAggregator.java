@@ -0,0 +1,152 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.shushme.provider.PlaceContract.DwellEntry;
+
+/**
+ * Folds the geofence transitions of the places into the dwell summary tables as they arrive.
+ * <p>
+ * An ENTER opens a visit and the matching EXIT closes it, adding its length to the daily total
+ * of every local day it spans and to the all-time total of the place. Only the open visits and
+ * the totals are stored, so nothing is ever rescanned and the tables grow with the number of
+ * places and days rather than with the number of transitions.
+ */
+final class DwellAggregator {
+
+    private static final String TAG = DwellAggregator.class.getSimpleName();
+    // The geofences expire after a day, a visit that seems longer lost its EXIT
+    private static final long MAX_VISIT_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private DwellAggregator() {
+    }
+
+    /**
+     * Applies one transition, to be called inside a transaction
+     *
+     * @param db         The writable database
+     * @param placeId    The Place ID
+     * @param transition Geofence.GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+     * @param time       When the transition happened, in milliseconds
+     * @return true if the summary tables changed
+     */
+    static boolean onTransition(SQLiteDatabase db, String placeId, int transition, long time) {
+        if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+            // An open visit too old to be real lost its EXIT, so this ENTER starts a new one
+            db.delete(DwellEntry.OPEN_TABLE_NAME, DwellEntry.COLUMN_PLACE_ID + "=? AND " +
+                            DwellEntry.COLUMN_ENTER_TIME + "<?",
+                    new String[]{placeId, String.valueOf(time - MAX_VISIT_MILLIS)});
+            // A repeated ENTER keeps the visit that is already open
+            ContentValues values = new ContentValues();
+            values.put(DwellEntry.COLUMN_PLACE_ID, placeId);
+            values.put(DwellEntry.COLUMN_ENTER_TIME, time);
+            db.insertWithOnConflict(DwellEntry.OPEN_TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            return false;
+        }
+        if (transition != Geofence.GEOFENCE_TRANSITION_EXIT) return false;
+
+        String[] placeArgs = new String[]{placeId};
+        Cursor open = db.query(DwellEntry.OPEN_TABLE_NAME,
+                new String[]{DwellEntry.COLUMN_ENTER_TIME},
+                DwellEntry.COLUMN_PLACE_ID + "=?", placeArgs, null, null, null);
+        long enterTime;
+        try {
+            // An EXIT without an ENTER, such as right after the app was installed
+            if (!open.moveToFirst()) return false;
+            enterTime = open.getLong(0);
+        } finally {
+            open.close();
+        }
+        db.delete(DwellEntry.OPEN_TABLE_NAME, DwellEntry.COLUMN_PLACE_ID + "=?", placeArgs);
+
+        if (time <= enterTime || time - enterTime > MAX_VISIT_MILLIS) {
+            Log.w(TAG, String.format("Dropping visit of %d ms at %s", time - enterTime, placeId));
+            return false;
+        }
+
+        // Split the visit at local midnights, the visit counts on the day it started
+        Calendar dayStart = Calendar.getInstance();
+        dayStart.setTimeInMillis(enterTime);
+        truncateToDay(dayStart);
+        long segmentStart = enterTime;
+        boolean firstDay = true;
+        while (segmentStart < time) {
+            long day = DwellEntry.getDay(dayStart.getTimeInMillis());
+            dayStart.add(Calendar.DAY_OF_MONTH, 1);
+            long segmentEnd = Math.min(time, dayStart.getTimeInMillis());
+            addDwell(db, DwellEntry.DAILY_TABLE_NAME,
+                    DwellEntry.COLUMN_DAY + "=? AND " + DwellEntry.COLUMN_PLACE_ID + "=?",
+                    new String[]{String.valueOf(day), placeId},
+                    day, placeId, segmentEnd - segmentStart, firstDay ? 1 : 0);
+            segmentStart = segmentEnd;
+            firstDay = false;
+        }
+        addDwell(db, DwellEntry.TOTALS_TABLE_NAME, DwellEntry.COLUMN_PLACE_ID + "=?", placeArgs,
+                -1, placeId, time - enterTime, 1);
+        return true;
+    }
+
+    private static void truncateToDay(Calendar calendar) {
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+    }
+
+    /**
+     * Adds to the totals of an existing row, or inserts the row
+     *
+     * @param day The day column of the row, negative for the totals table which has none
+     */
+    private static void addDwell(SQLiteDatabase db, String table, String whereClause,
+                                 String[] whereArgs, long day, String placeId, long millis,
+                                 int visits) {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(millis);
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " +
+                DwellEntry.COLUMN_DWELL_SECONDS + " = " + DwellEntry.COLUMN_DWELL_SECONDS + " + ?, " +
+                DwellEntry.COLUMN_VISITS + " = " + DwellEntry.COLUMN_VISITS + " + ?" +
+                " WHERE " + whereClause);
+        try {
+            update.bindLong(1, seconds);
+            update.bindLong(2, visits);
+            for (int i = 0; i < whereArgs.length; i++) {
+                update.bindString(i + 3, whereArgs[i]);
+            }
+            if (update.executeUpdateDelete() > 0) return;
+        } finally {
+            update.close();
+        }
+        ContentValues values = new ContentValues();
+        if (day >= 0) values.put(DwellEntry.COLUMN_DAY, day);
+        values.put(DwellEntry.COLUMN_PLACE_ID, placeId);
+        values.put(DwellEntry.COLUMN_DWELL_SECONDS, seconds);
+        values.put(DwellEntry.COLUMN_VISITS, visits);
+        db.insert(table, null, values);
+    }
+}
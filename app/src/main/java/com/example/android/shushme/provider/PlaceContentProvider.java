@@ -17,16 +17,27 @@ package com.example.android.shushme.provider;
 */
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 
+import java.util.ArrayList;
+
+import static com.example.android.shushme.provider.PlaceContract.DwellEntry;
+import static com.example.android.shushme.provider.PlaceContract.GroupEntry;
 import static com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import static com.example.android.shushme.provider.PlaceContract.PlaceSearchEntry;
 
 
 public class PlaceContentProvider extends ContentProvider {
@@ -36,6 +47,28 @@ public class PlaceContentProvider extends ContentProvider {
     // and related ints (101, 102, ..) for items in that directory.
     public static final int PLACES = 100;
     public static final int PLACE_WITH_ID = 101;
+    public static final int PLACE_SEARCH = 102;
+    public static final int GROUPS = 200;
+    public static final int GROUP_WITH_ID = 201;
+    public static final int DWELL = 300;
+    public static final int DWELL_DAILY = 301;
+    public static final int DWELL_RANGE = 302;
+    public static final int DWELL_TRANSITIONS = 303;
+
+    // Number of search results returned when the URI does not specify a limit
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
+    // Columns shared with the sync server, changing any of them marks the place for upload
+    private static final String[] SYNCED_COLUMNS = {
+            PlaceEntry.COLUMN_PLACE_ID,
+            PlaceEntry.COLUMN_PLACE_NAME,
+            PlaceEntry.COLUMN_PLACE_ADDRESS,
+            PlaceEntry.COLUMN_PLACE_LATITUDE,
+            PlaceEntry.COLUMN_PLACE_LONGITUDE,
+            PlaceEntry.COLUMN_SCHEDULE_START,
+            PlaceEntry.COLUMN_SCHEDULE_END
+    };
+    private static final String NOT_DELETED = PlaceEntry.COLUMN_DELETED + "=0";
 
     // Declare a static variable for the Uri matcher that you construct
     private static final UriMatcher sUriMatcher = buildUriMatcher();
@@ -48,6 +81,17 @@ public class PlaceContentProvider extends ContentProvider {
         // Add URI matches
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES, PLACES);
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES + "/#", PLACE_WITH_ID);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_PLACES + "/" + PlaceContract.PATH_SEARCH, PLACE_SEARCH);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_GROUPS, GROUPS);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_GROUPS + "/#", GROUP_WITH_ID);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_DWELL, DWELL);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_DWELL + "/" + PlaceContract.PATH_DAILY, DWELL_DAILY);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_DWELL + "/" + PlaceContract.PATH_RANGE, DWELL_RANGE);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_DWELL + "/" + PlaceContract.PATH_TRANSITIONS, DWELL_TRANSITIONS);
         return uriMatcher;
     }
 
@@ -78,13 +122,29 @@ public class PlaceContentProvider extends ContentProvider {
         switch (match) {
             case PLACES:
                 // Insert new values into the database
-                long id = db.insert(PlaceEntry.TABLE_NAME, null, values);
+                long id = db.insert(PlaceEntry.TABLE_NAME, null, markDirty(uri, values));
                 if (id > 0) {
                     returnUri = ContentUris.withAppendedId(PlaceContract.PlaceEntry.CONTENT_URI, id);
                 } else {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 }
                 break;
+            case GROUPS:
+                // Group names are unique, return the existing group when the name is taken
+                long groupId = db.insert(GroupEntry.TABLE_NAME, null, values);
+                if (groupId <= 0) {
+                    groupId = findGroupId(db, values.getAsString(GroupEntry.COLUMN_GROUP_NAME));
+                }
+                if (groupId > 0) {
+                    returnUri = ContentUris.withAppendedId(GroupEntry.CONTENT_URI, groupId);
+                } else {
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                }
+                break;
+            case DWELL_TRANSITIONS:
+                bulkInsert(uri, new ContentValues[]{values});
+                // The transition is folded into the totals rather than stored
+                return DwellEntry.CONTENT_URI;
             // Default case throws an UnsupportedOperationException
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -97,6 +157,61 @@ public class PlaceContentProvider extends ContentProvider {
         return returnUri;
     }
 
+    /***
+     * Handles requests to insert many rows of data, all inside a single transaction
+     *
+     * @param uri
+     * @param values
+     * @return number of rows inserted
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        int match = sUriMatcher.match(uri);
+        int placesInserted = 0;
+        switch (match) {
+            case PLACES:
+                db.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        if (db.insert(PlaceEntry.TABLE_NAME, null, markDirty(uri, value)) > 0) {
+                            placesInserted++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            case DWELL_TRANSITIONS:
+                boolean dwellChanged = false;
+                db.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        dwellChanged |= DwellAggregator.onTransition(db,
+                                value.getAsString(DwellEntry.COLUMN_PLACE_ID),
+                                value.getAsInteger(DwellEntry.COLUMN_TRANSITION),
+                                value.getAsLong(DwellEntry.COLUMN_TIME));
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (dwellChanged) {
+                    getContext().getContentResolver().notifyChange(DwellEntry.CONTENT_URI, null);
+                }
+                return values.length;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        // Notify the resolver once for the whole batch
+        if (placesInserted != 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return placesInserted;
+    }
+
     /***
      * Handles requests for data by URI
      *
@@ -121,6 +236,10 @@ public class PlaceContentProvider extends ContentProvider {
         switch (match) {
             // Query for the places directory
             case PLACES:
+                // Deleted places stay as tombstones until the sync engine uploads them
+                if (!isCallerSyncAdapter(uri)) {
+                    selection = DatabaseUtils.concatenateWhere(NOT_DELETED, selection);
+                }
                 retCursor = db.query(PlaceEntry.TABLE_NAME,
                         projection,
                         selection,
@@ -129,6 +248,44 @@ public class PlaceContentProvider extends ContentProvider {
                         null,
                         sortOrder);
                 break;
+            // Full-text search over the place names and addresses
+            case PLACE_SEARCH:
+                retCursor = searchPlaces(db, uri, projection);
+                break;
+            // Query for the groups directory
+            case GROUPS:
+                retCursor = db.query(GroupEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+                break;
+            // The all-time dwell total of each place
+            case DWELL:
+                retCursor = db.query(DwellEntry.TOTALS_TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+                break;
+            // The dwell total of each place on each day
+            case DWELL_DAILY:
+                retCursor = db.query(DwellEntry.DAILY_TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+                break;
+            // The dwell total of each place over a range of days
+            case DWELL_RANGE:
+                retCursor = queryDwellRange(db, uri, sortOrder);
+                break;
             // Default exception
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -158,11 +315,32 @@ public class PlaceContentProvider extends ContentProvider {
         int placesDeleted; // starts as 0
         switch (match) {
             // Handle the single item case, recognized by the ID included in the URI path
+            case PLACES:
+                placesDeleted = deletePlaces(db, uri, selection, selectionArgs);
+                break;
             case PLACE_WITH_ID:
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
                 // Use selections/selectionArgs to filter for this ID
-                placesDeleted = db.delete(PlaceEntry.TABLE_NAME, "_id=?", new String[]{id});
+                placesDeleted = deletePlaces(db, uri, "_id=?", new String[]{id});
+                break;
+            case GROUP_WITH_ID:
+                // Take the places out of the group along with deleting it
+                String groupId = uri.getPathSegments().get(1);
+                db.beginTransaction();
+                try {
+                    ContentValues ungrouped = new ContentValues();
+                    ungrouped.putNull(PlaceEntry.COLUMN_GROUP_ID);
+                    db.update(PlaceEntry.TABLE_NAME, ungrouped,
+                            PlaceEntry.COLUMN_GROUP_ID + "=?", new String[]{groupId});
+                    placesDeleted = db.delete(GroupEntry.TABLE_NAME, "_id=?", new String[]{groupId});
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (placesDeleted != 0) {
+                    getContext().getContentResolver().notifyChange(PlaceEntry.CONTENT_URI, null);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -177,7 +355,7 @@ public class PlaceContentProvider extends ContentProvider {
     }
 
     /***
-     * Updates a single row of data
+     * Updates a single row of data, or all the places matching the selection
      *
      * @param uri
      * @param selection
@@ -194,11 +372,23 @@ public class PlaceContentProvider extends ContentProvider {
         int placesUpdated;
 
         switch (match) {
+            case PLACES:
+                // Update whichever places match the selection
+                placesUpdated = db.update(PlaceEntry.TABLE_NAME, markDirty(uri, values),
+                        selection, selectionArgs);
+                break;
             case PLACE_WITH_ID:
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
                 // Use selections/selectionArgs to filter for this ID
-                placesUpdated = db.update(PlaceEntry.TABLE_NAME, values, "_id=?", new String[]{id});
+                placesUpdated = db.update(PlaceEntry.TABLE_NAME, markDirty(uri, values),
+                        "_id=?", new String[]{id});
+                break;
+            case GROUP_WITH_ID:
+                // Renaming, enabling or disabling a group is a single row update,
+                // its places follow the group through their group ID
+                String groupId = uri.getPathSegments().get(1);
+                placesUpdated = db.update(GroupEntry.TABLE_NAME, values, "_id=?", new String[]{groupId});
                 break;
             // Default exception
             default:
@@ -214,6 +404,174 @@ public class PlaceContentProvider extends ContentProvider {
         return placesUpdated;
     }
 
+    /***
+     * Applies a batch of operations inside a single transaction, so that either all of them
+     * or none of them take effect
+     *
+     * @param operations
+     * @return the results of the operations
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the matching places for the sync engine, and turns them into tombstones to be
+     * uploaded for anyone else
+     */
+    private int deletePlaces(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+        if (isCallerSyncAdapter(uri)) {
+            return db.delete(PlaceEntry.TABLE_NAME, selection, selectionArgs);
+        }
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(PlaceEntry.COLUMN_DELETED, 1);
+        tombstone.put(PlaceEntry.COLUMN_DIRTY, System.currentTimeMillis());
+        return db.update(PlaceEntry.TABLE_NAME, tombstone,
+                DatabaseUtils.concatenateWhere(NOT_DELETED, selection), selectionArgs);
+    }
+
+    /**
+     * Records a change to any synced column of a place for upload, unless the change comes
+     * from the sync engine itself
+     *
+     * @return the values to write
+     */
+    private static ContentValues markDirty(Uri uri, ContentValues values) {
+        if (values == null || isCallerSyncAdapter(uri)) return values;
+        for (String column : SYNCED_COLUMNS) {
+            if (values.containsKey(column)) {
+                ContentValues dirtyValues = new ContentValues(values);
+                dirtyValues.put(PlaceEntry.COLUMN_DIRTY, System.currentTimeMillis());
+                return dirtyValues;
+            }
+        }
+        return values;
+    }
+
+    private static boolean isCallerSyncAdapter(Uri uri) {
+        return uri.getBooleanQueryParameter(PlaceContract.CALLER_IS_SYNC_ADAPTER, false);
+    }
+
+    private long findGroupId(SQLiteDatabase db, String groupName) {
+        if (groupName == null) return -1;
+        Cursor cursor = db.query(GroupEntry.TABLE_NAME, new String[]{GroupEntry._ID},
+                GroupEntry.COLUMN_GROUP_NAME + "=?", new String[]{groupName}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /***
+     * Runs a prefix full-text search of the "q" query parameter against the place names and
+     * addresses. Places whose name matches are ranked ahead of those matching only on the
+     * address, shorter names first.
+     *
+     * @param db         The readable database
+     * @param uri        The search URI carrying the "q" and optional "limit" parameters
+     * @param projection Columns of the places table to return, all of them if null
+     * @return Cursor over the matching rows of the places table
+     */
+    private Cursor searchPlaces(SQLiteDatabase db, Uri uri, String[] projection) {
+        String matchExpression = buildMatchExpression(
+                uri.getQueryParameter(PlaceSearchEntry.QUERY_PARAMETER));
+        String limit = uri.getQueryParameter(PlaceSearchEntry.LIMIT_PARAMETER);
+        if (limit == null || !TextUtils.isDigitsOnly(limit)) {
+            limit = String.valueOf(DEFAULT_SEARCH_LIMIT);
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(PlaceEntry.TABLE_NAME + " INNER JOIN " + PlaceSearchEntry.TABLE_NAME +
+                " ON " + PlaceEntry.TABLE_NAME + "." + PlaceEntry._ID + " = " +
+                PlaceSearchEntry.TABLE_NAME + ".docid");
+
+        // Qualify the columns, the name and address columns exist in both tables
+        String[] columns;
+        if (projection == null) {
+            columns = new String[]{PlaceEntry.TABLE_NAME + ".*"};
+        } else {
+            columns = new String[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                columns[i] = PlaceEntry.TABLE_NAME + "." + projection[i];
+            }
+        }
+
+        // Nothing searchable in the query, match no rows
+        if (matchExpression == null) {
+            return builder.query(db, columns, "0", null, null, null, null, "0");
+        }
+
+        // offsets() lists the matches column by column, so a leading "0" means a name match
+        String rankOrder = "substr(offsets(" + PlaceSearchEntry.TABLE_NAME + "), 1, 1), " +
+                "length(" + PlaceEntry.TABLE_NAME + "." + PlaceEntry.COLUMN_PLACE_NAME + ")";
+
+        return builder.query(db,
+                columns,
+                PlaceSearchEntry.TABLE_NAME + " MATCH ? AND " +
+                        PlaceEntry.TABLE_NAME + "." + NOT_DELETED,
+                new String[]{matchExpression},
+                null,
+                null,
+                rankOrder,
+                limit);
+    }
+
+    /***
+     * Sums the daily dwell totals of each place over the days given by the "from" and "to"
+     * parameters, reading one row per place and day through the (day, placeID) primary key
+     *
+     * @param db        The readable database
+     * @param uri       The range URI, see {@link DwellEntry#buildRangeUri}
+     * @param sortOrder The order of the rows, by place ID if null
+     * @return Cursor over the place ID, dwell seconds and visits of each place
+     */
+    private Cursor queryDwellRange(SQLiteDatabase db, Uri uri, String sortOrder) {
+        String fromDay = uri.getQueryParameter(DwellEntry.FROM_DAY_PARAMETER);
+        String toDay = uri.getQueryParameter(DwellEntry.TO_DAY_PARAMETER);
+        if (fromDay == null || toDay == null ||
+                !TextUtils.isDigitsOnly(fromDay) || !TextUtils.isDigitsOnly(toDay)) {
+            throw new IllegalArgumentException("Missing day range: " + uri);
+        }
+        return db.query(DwellEntry.DAILY_TABLE_NAME,
+                new String[]{DwellEntry.COLUMN_PLACE_ID,
+                        "SUM(" + DwellEntry.COLUMN_DWELL_SECONDS + ") AS " + DwellEntry.COLUMN_DWELL_SECONDS,
+                        "SUM(" + DwellEntry.COLUMN_VISITS + ") AS " + DwellEntry.COLUMN_VISITS},
+                DwellEntry.COLUMN_DAY + " BETWEEN ? AND ?",
+                new String[]{fromDay, toDay},
+                DwellEntry.COLUMN_PLACE_ID,
+                null,
+                sortOrder != null ? sortOrder : DwellEntry.COLUMN_PLACE_ID);
+    }
+
+    /**
+     * Turns the raw user query into an FTS prefix query, every word becomes a prefix term
+     * and all terms are required to match
+     *
+     * @param query The text typed in by the user
+     * @return The MATCH expression, or null if the query holds no searchable words
+     */
+    static String buildMatchExpression(String query) {
+        if (query == null) return null;
+        StringBuilder expression = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.isEmpty()) continue;
+            if (expression.length() > 0) expression.append(' ');
+            expression.append(word).append('*');
+        }
+        return expression.length() == 0 ? null : expression.toString();
+    }
 
     @Override
     public String getType(@NonNull Uri uri) {
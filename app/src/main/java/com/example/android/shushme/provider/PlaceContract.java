@@ -19,6 +19,10 @@ package com.example.android.shushme.provider;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
 public class PlaceContract {
 
     // The authority, which is how your code knows which Content Provider to access
@@ -30,6 +34,21 @@ public class PlaceContract {
     // Define the possible paths for accessing data in this contract
     // This is the path for the "places" directory
     public static final String PATH_PLACES = "places";
+    // This is the path for the full-text search over the "places" directory
+    public static final String PATH_SEARCH = "search";
+    // This is the path for the "groups" directory
+    public static final String PATH_GROUPS = "groups";
+
+    // This is the path for the time spent at places
+    public static final String PATH_DWELL = "dwell";
+    // These are the paths under the "dwell" directory
+    public static final String PATH_DAILY = "daily";
+    public static final String PATH_RANGE = "range";
+    public static final String PATH_TRANSITIONS = "transitions";
+
+    // Query parameter marking changes made by the sync engine, which are neither recorded for
+    // upload nor turned into tombstones, and queries that should include the tombstones
+    public static final String CALLER_IS_SYNC_ADAPTER = "caller_is_sync_adapter";
 
     public static final class PlaceEntry implements BaseColumns {
 
@@ -39,5 +58,113 @@ public class PlaceContract {
 
         public static final String TABLE_NAME = "places";
         public static final String COLUMN_PLACE_ID = "placeID";
+        public static final String COLUMN_PLACE_NAME = "placeName";
+        public static final String COLUMN_PLACE_ADDRESS = "placeAddress";
+        public static final String COLUMN_PLACE_LATITUDE = "placeLatitude";
+        public static final String COLUMN_PLACE_LONGITUDE = "placeLongitude";
+        // Daily activation window in minutes since midnight, NULL when always active
+        public static final String COLUMN_SCHEDULE_START = "scheduleStart";
+        public static final String COLUMN_SCHEDULE_END = "scheduleEnd";
+        // The _id of the group the place belongs to, NULL when not in a group
+        public static final String COLUMN_GROUP_ID = "groupId";
+        // Polygon outline of the place packed as by PlaceOutline#toBlob, NULL for a circle
+        public static final String COLUMN_PLACE_OUTLINE = "placeOutline";
+        // Version of the row on the sync server the local row is based on, 0 if never synced
+        public static final String COLUMN_VERSION = "version";
+        // Time of the last local change not yet uploaded, 0 when in sync with the server
+        public static final String COLUMN_DIRTY = "dirty";
+        // 1 for a place deleted locally whose deletion is not yet uploaded
+        public static final String COLUMN_DELETED = "deleted";
+
+        // The places URI for the sync engine
+        public static final Uri SYNC_ADAPTER_URI = CONTENT_URI.buildUpon()
+                .appendQueryParameter(CALLER_IS_SYNC_ADAPTER, "true").build();
+    }
+
+    public static final class GroupEntry implements BaseColumns {
+
+        // GroupEntry content URI = base content URI + path
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_GROUPS).build();
+
+        public static final String TABLE_NAME = "groups";
+        public static final String COLUMN_GROUP_NAME = "groupName";
+        // 1 when the places of the group are monitored, 0 when the group is muted
+        public static final String COLUMN_GROUP_ENABLED = "groupEnabled";
+    }
+
+    public static final class PlaceSearchEntry {
+
+        // Search content URI = places content URI + search path, takes the query as "q"
+        public static final Uri CONTENT_URI =
+                PlaceEntry.CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).build();
+
+        // FTS4 virtual table mirroring the searchable columns of the places table,
+        // its docid is the _id of the place row
+        public static final String TABLE_NAME = "places_fts";
+
+        public static final String QUERY_PARAMETER = "q";
+        public static final String LIMIT_PARAMETER = "limit";
+    }
+
+    public static final class DwellEntry {
+
+        // Dwell content URI = base content URI + dwell path, the all-time total of each place
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_DWELL).build();
+        // The total of each place on each day
+        public static final Uri DAILY_CONTENT_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_DAILY).build();
+        // The total of each place over a range of days, see buildRangeUri
+        public static final Uri RANGE_CONTENT_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_RANGE).build();
+        // Insert only, takes the geofence transitions of the places as they happen
+        public static final Uri TRANSITIONS_CONTENT_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_TRANSITIONS).build();
+
+        public static final String TOTALS_TABLE_NAME = "dwell_totals";
+        public static final String DAILY_TABLE_NAME = "dwell_daily";
+        // The visits entered but not yet exited
+        public static final String OPEN_TABLE_NAME = "dwell_open";
+
+        public static final String COLUMN_PLACE_ID = "placeID";
+        // Local day as the number of days since 1970-01-01
+        public static final String COLUMN_DAY = "day";
+        public static final String COLUMN_DWELL_SECONDS = "dwellSeconds";
+        public static final String COLUMN_VISITS = "visits";
+        public static final String COLUMN_ENTER_TIME = "enterTime";
+        // Columns of a transition inserted into TRANSITIONS_CONTENT_URI
+        public static final String COLUMN_TRANSITION = "transition";
+        public static final String COLUMN_TIME = "time";
+
+        public static final String FROM_DAY_PARAMETER = "from";
+        public static final String TO_DAY_PARAMETER = "to";
+
+        /**
+         * @param timeMillis A time in milliseconds
+         * @return The local day of the time, as the number of days since 1970-01-01
+         */
+        public static long getDay(long timeMillis) {
+            Calendar local = Calendar.getInstance();
+            local.setTimeInMillis(timeMillis);
+            // Count the local date in UTC so that DST changes do not shift the day number
+            Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            utc.clear();
+            utc.set(local.get(Calendar.YEAR), local.get(Calendar.MONTH),
+                    local.get(Calendar.DAY_OF_MONTH));
+            return TimeUnit.MILLISECONDS.toDays(utc.getTimeInMillis());
+        }
+
+        /**
+         * @param fromDay The first day, inclusive
+         * @param toDay   The last day, inclusive
+         * @return The URI of the total of each place over the days
+         */
+        public static Uri buildRangeUri(long fromDay, long toDay) {
+            return RANGE_CONTENT_URI.buildUpon()
+                    .appendQueryParameter(FROM_DAY_PARAMETER, String.valueOf(fromDay))
+                    .appendQueryParameter(TO_DAY_PARAMETER, String.valueOf(toDay))
+                    .build();
+        }
     }
 }
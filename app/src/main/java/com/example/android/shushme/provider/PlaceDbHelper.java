@@ -20,7 +20,10 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.shushme.provider.PlaceContract.DwellEntry;
+import com.example.android.shushme.provider.PlaceContract.GroupEntry;
 import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.PlaceSearchEntry;
 
 public class PlaceDbHelper extends SQLiteOpenHelper {
 
@@ -28,13 +31,20 @@ public class PlaceDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "shushme.db";
 
     // If you change the database schema, you must increment the database version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 8;
 
     // Constructor
     public PlaceDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        // The UNIQUE ... ON CONFLICT REPLACE on the places table deletes the old row
+        // silently, unless recursive triggers are on the search index would keep it
+        sqLiteDatabase.execSQL("PRAGMA recursive_triggers = ON");
+    }
+
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
 
@@ -42,16 +52,171 @@ public class PlaceDbHelper extends SQLiteOpenHelper {
         final String SQL_CREATE_PLACES_TABLE = "CREATE TABLE " + PlaceEntry.TABLE_NAME + " (" +
                 PlaceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 PlaceEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
+                PlaceEntry.COLUMN_PLACE_NAME + " TEXT, " +
+                PlaceEntry.COLUMN_PLACE_ADDRESS + " TEXT, " +
+                PlaceEntry.COLUMN_PLACE_LATITUDE + " REAL, " +
+                PlaceEntry.COLUMN_PLACE_LONGITUDE + " REAL, " +
+                PlaceEntry.COLUMN_SCHEDULE_START + " INTEGER, " +
+                PlaceEntry.COLUMN_SCHEDULE_END + " INTEGER, " +
+                PlaceEntry.COLUMN_GROUP_ID + " INTEGER, " +
+                PlaceEntry.COLUMN_PLACE_OUTLINE + " BLOB, " +
+                PlaceEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                PlaceEntry.COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0, " +
+                PlaceEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0, " +
                 "UNIQUE (" + PlaceEntry.COLUMN_PLACE_ID + ") ON CONFLICT REPLACE" +
                 "); ";
 
         sqLiteDatabase.execSQL(SQL_CREATE_PLACES_TABLE);
+        createSearchIndex(sqLiteDatabase);
+        createGroupsTable(sqLiteDatabase);
+        createDirtyIndex(sqLiteDatabase);
+        createDwellTables(sqLiteDatabase);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        // For now simply drop the table and create a new one.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PlaceEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Upgrade step by step so that no saved places are lost
+        if (oldVersion < 2) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_PLACE_NAME + " TEXT");
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_PLACE_ADDRESS + " TEXT");
+            createSearchIndex(sqLiteDatabase);
+        }
+        if (oldVersion < 3) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_PLACE_LATITUDE + " REAL");
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_PLACE_LONGITUDE + " REAL");
+        }
+        if (oldVersion < 4) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_SCHEDULE_START + " INTEGER");
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_SCHEDULE_END + " INTEGER");
+        }
+        if (oldVersion < 5) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_GROUP_ID + " INTEGER");
+            createGroupsTable(sqLiteDatabase);
+        }
+        if (oldVersion < 6) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0");
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0");
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0");
+            // Every place saved so far is yet to be uploaded
+            sqLiteDatabase.execSQL("UPDATE " + PlaceEntry.TABLE_NAME +
+                    " SET " + PlaceEntry.COLUMN_DIRTY + " = 1");
+            createDirtyIndex(sqLiteDatabase);
+        }
+        if (oldVersion < 7) {
+            createDwellTables(sqLiteDatabase);
+        }
+        if (oldVersion < 8) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                    " ADD COLUMN " + PlaceEntry.COLUMN_PLACE_OUTLINE + " BLOB");
+        }
+    }
+
+    /**
+     * Creates the summary tables of the time spent at places, one row per place per day, one
+     * per place, and one per visit still going on
+     *
+     * @param sqLiteDatabase The database to create the tables in
+     */
+    private void createDwellTables(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + DwellEntry.DAILY_TABLE_NAME + " (" +
+                DwellEntry.COLUMN_DAY + " INTEGER NOT NULL, " +
+                DwellEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
+                DwellEntry.COLUMN_DWELL_SECONDS + " INTEGER NOT NULL DEFAULT 0, " +
+                DwellEntry.COLUMN_VISITS + " INTEGER NOT NULL DEFAULT 0, " +
+                "PRIMARY KEY (" + DwellEntry.COLUMN_DAY + ", " + DwellEntry.COLUMN_PLACE_ID + ")" +
+                "); ");
+        sqLiteDatabase.execSQL("CREATE TABLE " + DwellEntry.TOTALS_TABLE_NAME + " (" +
+                DwellEntry.COLUMN_PLACE_ID + " TEXT PRIMARY KEY, " +
+                DwellEntry.COLUMN_DWELL_SECONDS + " INTEGER NOT NULL DEFAULT 0, " +
+                DwellEntry.COLUMN_VISITS + " INTEGER NOT NULL DEFAULT 0" +
+                "); ");
+        sqLiteDatabase.execSQL("CREATE TABLE " + DwellEntry.OPEN_TABLE_NAME + " (" +
+                DwellEntry.COLUMN_PLACE_ID + " TEXT PRIMARY KEY, " +
+                DwellEntry.COLUMN_ENTER_TIME + " INTEGER NOT NULL" +
+                "); ");
+    }
+
+    /**
+     * Creates the index the sync engine finds the places changed since the last sync with
+     *
+     * @param sqLiteDatabase The database to create the index in
+     */
+    private void createDirtyIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX " + PlaceEntry.TABLE_NAME + "_" +
+                PlaceEntry.COLUMN_DIRTY + " ON " + PlaceEntry.TABLE_NAME +
+                " (" + PlaceEntry.COLUMN_DIRTY + ")");
+    }
+
+    /**
+     * Creates the table of named place groups, with an index to find the places of a group
+     *
+     * @param sqLiteDatabase The database to create the table in
+     */
+    private void createGroupsTable(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + GroupEntry.TABLE_NAME + " (" +
+                GroupEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                GroupEntry.COLUMN_GROUP_NAME + " TEXT NOT NULL, " +
+                GroupEntry.COLUMN_GROUP_ENABLED + " INTEGER NOT NULL DEFAULT 1, " +
+                "UNIQUE (" + GroupEntry.COLUMN_GROUP_NAME + ") ON CONFLICT IGNORE" +
+                "); ");
+        sqLiteDatabase.execSQL("CREATE INDEX " + PlaceEntry.TABLE_NAME + "_" +
+                PlaceEntry.COLUMN_GROUP_ID + " ON " + PlaceEntry.TABLE_NAME +
+                " (" + PlaceEntry.COLUMN_GROUP_ID + ")");
+    }
+
+    /**
+     * Creates the FTS4 index over the place name and address, kept in sync with the places
+     * table by triggers, and fills it with any rows already present
+     *
+     * @param sqLiteDatabase The database to create the index in
+     */
+    private void createSearchIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE VIRTUAL TABLE " + PlaceSearchEntry.TABLE_NAME +
+                " USING fts4(" +
+                PlaceEntry.COLUMN_PLACE_NAME + ", " +
+                PlaceEntry.COLUMN_PLACE_ADDRESS +
+                ")");
+
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceSearchEntry.TABLE_NAME + "_insert" +
+                " AFTER INSERT ON " + PlaceEntry.TABLE_NAME + " BEGIN " +
+                insertSearchRowSql() +
+                " END");
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceSearchEntry.TABLE_NAME + "_update" +
+                " AFTER UPDATE ON " + PlaceEntry.TABLE_NAME + " BEGIN " +
+                deleteSearchRowSql() + " " +
+                insertSearchRowSql() +
+                " END");
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + PlaceSearchEntry.TABLE_NAME + "_delete" +
+                " AFTER DELETE ON " + PlaceEntry.TABLE_NAME + " BEGIN " +
+                deleteSearchRowSql() +
+                " END");
+
+        sqLiteDatabase.execSQL("INSERT INTO " + PlaceSearchEntry.TABLE_NAME + "(docid, " +
+                PlaceEntry.COLUMN_PLACE_NAME + ", " + PlaceEntry.COLUMN_PLACE_ADDRESS + ")" +
+                " SELECT " + PlaceEntry._ID + ", " +
+                PlaceEntry.COLUMN_PLACE_NAME + ", " + PlaceEntry.COLUMN_PLACE_ADDRESS +
+                " FROM " + PlaceEntry.TABLE_NAME);
+    }
+
+    private static String insertSearchRowSql() {
+        return "INSERT INTO " + PlaceSearchEntry.TABLE_NAME + "(docid, " +
+                PlaceEntry.COLUMN_PLACE_NAME + ", " + PlaceEntry.COLUMN_PLACE_ADDRESS + ")" +
+                " VALUES (new." + PlaceEntry._ID + ", new." + PlaceEntry.COLUMN_PLACE_NAME +
+                ", new." + PlaceEntry.COLUMN_PLACE_ADDRESS + ");";
+    }
+
+    private static String deleteSearchRowSql() {
+        return "DELETE FROM " + PlaceSearchEntry.TABLE_NAME +
+                " WHERE docid = old." + PlaceEntry._ID + ";";
     }
 }
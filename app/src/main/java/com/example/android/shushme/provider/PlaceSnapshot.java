@@ -0,0 +1,440 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports and imports the saved places as a compact binary snapshot.
+ * <p>
+ * Layout of version 2, all counts and indices are unsigned varints:
+ * <pre>
+ * int     magic "SHME"
+ * byte    format version
+ * varint  string count, followed by each string as a varint byte length and its UTF-8 bytes
+ * varint  place count, followed by each place as
+ *         byte    flags: 1 = has name, 2 = has address, 4 = has coordinates, 8 = has schedule
+ *         varint  string index of the Place ID
+ *         varint  string index of the name, if flagged
+ *         varint  string index of the address, if flagged
+ *         zigzag varints of the latitude and longitude in 1e-7 degrees, each a delta from the
+ *         previous place with coordinates, if flagged
+ *         varints of the schedule start and end in minutes since midnight, if flagged
+ * </pre>
+ * Places are written ordered by latitude so that the coordinate deltas stay small. Version 1 is
+ * the same without the schedule flag, and is still imported.
+ * <p>
+ * Groups and outlines are per device and out of scope, as are the sync columns. Importing only
+ * sets the columns above, a place that is already saved keeps its row and everything else, and
+ * importing a version 1 snapshot keeps its schedule too. Importing the same snapshot twice
+ * changes nothing.
+ */
+public class PlaceSnapshot {
+
+    private static final int MAGIC = 0x53484D45; // "SHME"
+    private static final byte VERSION = 2;
+    // The last version without schedules
+    private static final byte VERSION_NO_SCHEDULE = 1;
+
+    private static final int FLAG_NAME = 1;
+    private static final int FLAG_ADDRESS = 2;
+    private static final int FLAG_COORDINATES = 4;
+    private static final int FLAG_SCHEDULE = 8;
+
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] PROJECTION = {
+            PlaceEntry.COLUMN_PLACE_ID,
+            PlaceEntry.COLUMN_PLACE_NAME,
+            PlaceEntry.COLUMN_PLACE_ADDRESS,
+            PlaceEntry.COLUMN_PLACE_LATITUDE,
+            PlaceEntry.COLUMN_PLACE_LONGITUDE,
+            PlaceEntry.COLUMN_SCHEDULE_START,
+            PlaceEntry.COLUMN_SCHEDULE_END
+    };
+    private static final int INDEX_PLACE_ID = 0;
+    private static final int INDEX_NAME = 1;
+    private static final int INDEX_ADDRESS = 2;
+    private static final int INDEX_LATITUDE = 3;
+    private static final int INDEX_LONGITUDE = 4;
+    private static final int INDEX_SCHEDULE_START = 5;
+    private static final int INDEX_SCHEDULE_END = 6;
+
+    private PlaceSnapshot() {
+    }
+
+    /**
+     * Writes all the saved places to the file, streaming them through a FileChannel
+     *
+     * @param resolver The resolver to read the places with
+     * @param file     The snapshot file to create or overwrite
+     * @return The number of places written
+     * @throws IOException if the file could not be written
+     */
+    public static int exportTo(ContentResolver resolver, File file) throws IOException {
+        Cursor data = resolver.query(PlaceEntry.CONTENT_URI, PROJECTION, null, null,
+                PlaceEntry.COLUMN_PLACE_LATITUDE);
+        if (data == null) throw new IOException("Unable to read the places");
+
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            ChannelWriter writer = new ChannelWriter(outputStream.getChannel());
+            writer.writeInt(MAGIC);
+            writer.writeByte(VERSION);
+
+            // First pass, build the string table so that repeated strings are stored once
+            Map<String, Integer> stringIndices = new HashMap<>();
+            List<String> strings = new ArrayList<>();
+            while (data.moveToNext()) {
+                for (int column = INDEX_PLACE_ID; column <= INDEX_ADDRESS; column++) {
+                    String value = data.getString(column);
+                    if (value != null && !stringIndices.containsKey(value)) {
+                        stringIndices.put(value, strings.size());
+                        strings.add(value);
+                    }
+                }
+            }
+            writer.writeVarint(strings.size());
+            for (String value : strings) {
+                byte[] bytes = value.getBytes(UTF_8);
+                writer.writeVarint(bytes.length);
+                writer.writeBytes(bytes);
+            }
+
+            // Second pass, write the places themselves
+            writer.writeVarint(data.getCount());
+            data.moveToPosition(-1);
+            int previousLatitude = 0;
+            int previousLongitude = 0;
+            while (data.moveToNext()) {
+                boolean hasName = !data.isNull(INDEX_NAME);
+                boolean hasAddress = !data.isNull(INDEX_ADDRESS);
+                boolean hasCoordinates = !data.isNull(INDEX_LATITUDE) && !data.isNull(INDEX_LONGITUDE);
+                boolean hasSchedule = !data.isNull(INDEX_SCHEDULE_START) && !data.isNull(INDEX_SCHEDULE_END);
+                writer.writeByte((byte) ((hasName ? FLAG_NAME : 0)
+                        | (hasAddress ? FLAG_ADDRESS : 0)
+                        | (hasCoordinates ? FLAG_COORDINATES : 0)
+                        | (hasSchedule ? FLAG_SCHEDULE : 0)));
+                writer.writeVarint(stringIndices.get(data.getString(INDEX_PLACE_ID)));
+                if (hasName) writer.writeVarint(stringIndices.get(data.getString(INDEX_NAME)));
+                if (hasAddress) writer.writeVarint(stringIndices.get(data.getString(INDEX_ADDRESS)));
+                if (hasCoordinates) {
+                    int latitude = (int) Math.round(data.getDouble(INDEX_LATITUDE) * COORDINATE_SCALE);
+                    int longitude = (int) Math.round(data.getDouble(INDEX_LONGITUDE) * COORDINATE_SCALE);
+                    writer.writeVarint(zigzag(latitude - previousLatitude));
+                    writer.writeVarint(zigzag(longitude - previousLongitude));
+                    previousLatitude = latitude;
+                    previousLongitude = longitude;
+                }
+                if (hasSchedule) {
+                    writer.writeVarint(data.getInt(INDEX_SCHEDULE_START));
+                    writer.writeVarint(data.getInt(INDEX_SCHEDULE_END));
+                }
+            }
+            writer.flush();
+            return data.getCount();
+        } finally {
+            data.close();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Reads the places from a memory-mapped snapshot file and stores them in the provider.
+     * Places already saved are updated in one batch, only where the snapshot differs, and the
+     * new ones are added with one bulk insert. Either step may be repeated safely, since
+     * importing is idempotent.
+     *
+     * @param resolver The resolver to store the places with
+     * @param file     The snapshot file written by {@link #exportTo}
+     * @return The number of places added or changed
+     * @throws IOException if the file could not be read or is not a valid snapshot
+     */
+    public static int importFrom(ContentResolver resolver, File file) throws IOException {
+        ContentValues[] values;
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            values = readPlaces(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated place snapshot: " + file);
+        } catch (OutOfMemoryError | NegativeArraySizeException e) {
+            throw new IOException("Place snapshot too large: " + file, e);
+        } finally {
+            inputStream.close();
+        }
+
+        Map<String, ContentValues> saved = loadSavedPlaces(resolver);
+        ArrayList<ContentProviderOperation> updates = new ArrayList<>();
+        List<ContentValues> inserts = new ArrayList<>();
+        for (ContentValues place : values) {
+            String placeId = place.getAsString(PlaceEntry.COLUMN_PLACE_ID);
+            ContentValues current = saved.get(placeId);
+            if (current == null) {
+                inserts.add(place);
+            } else if (differs(current, place)) {
+                // Brings back a place deleted since, as with an insert
+                ContentValues changes = new ContentValues(place);
+                changes.put(PlaceEntry.COLUMN_DELETED, 0);
+                updates.add(ContentProviderOperation.newUpdate(PlaceEntry.CONTENT_URI)
+                        .withSelection(PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{placeId})
+                        .withValues(changes)
+                        .build());
+            }
+        }
+        if (!updates.isEmpty()) {
+            try {
+                resolver.applyBatch(PlaceContract.AUTHORITY, updates);
+            } catch (RemoteException | OperationApplicationException e) {
+                throw new IOException("Unable to update the places", e);
+            }
+        }
+        int inserted = inserts.isEmpty() ? 0 :
+                resolver.bulkInsert(PlaceEntry.CONTENT_URI, inserts.toArray(new ContentValues[inserts.size()]));
+        return updates.size() + inserted;
+    }
+
+    /**
+     * @return The snapshot columns of every saved place by Place ID, deleted ones marked by a
+     * null Place ID so that they never equal a snapshot place
+     */
+    private static Map<String, ContentValues> loadSavedPlaces(ContentResolver resolver) throws IOException {
+        String[] projection = Arrays.copyOf(PROJECTION, PROJECTION.length + 1);
+        projection[PROJECTION.length] = PlaceEntry.COLUMN_DELETED;
+        // The sync adapter URI includes the deleted places
+        Cursor data = resolver.query(PlaceEntry.SYNC_ADAPTER_URI, projection, null, null, null);
+        if (data == null) throw new IOException("Unable to read the places");
+        Map<String, ContentValues> places = new HashMap<>();
+        try {
+            while (data.moveToNext()) {
+                String placeId = data.getString(INDEX_PLACE_ID);
+                ContentValues place = new ContentValues();
+                if (data.getInt(PROJECTION.length) == 0) {
+                    place.put(PlaceEntry.COLUMN_PLACE_ID, placeId);
+                } else {
+                    place.putNull(PlaceEntry.COLUMN_PLACE_ID);
+                }
+                place.put(PlaceEntry.COLUMN_PLACE_NAME, data.getString(INDEX_NAME));
+                place.put(PlaceEntry.COLUMN_PLACE_ADDRESS, data.getString(INDEX_ADDRESS));
+                if (data.isNull(INDEX_LATITUDE) || data.isNull(INDEX_LONGITUDE)) {
+                    place.putNull(PlaceEntry.COLUMN_PLACE_LATITUDE);
+                    place.putNull(PlaceEntry.COLUMN_PLACE_LONGITUDE);
+                } else {
+                    // Rounded like the snapshot, so that an unchanged place compares equal
+                    place.put(PlaceEntry.COLUMN_PLACE_LATITUDE, roundCoordinate(data.getDouble(INDEX_LATITUDE)));
+                    place.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, roundCoordinate(data.getDouble(INDEX_LONGITUDE)));
+                }
+                if (data.isNull(INDEX_SCHEDULE_START) || data.isNull(INDEX_SCHEDULE_END)) {
+                    place.putNull(PlaceEntry.COLUMN_SCHEDULE_START);
+                    place.putNull(PlaceEntry.COLUMN_SCHEDULE_END);
+                } else {
+                    place.put(PlaceEntry.COLUMN_SCHEDULE_START, data.getInt(INDEX_SCHEDULE_START));
+                    place.put(PlaceEntry.COLUMN_SCHEDULE_END, data.getInt(INDEX_SCHEDULE_END));
+                }
+                places.put(placeId, place);
+            }
+        } finally {
+            data.close();
+        }
+        return places;
+    }
+
+    /**
+     * @return true if a snapshot place sets any column to another value than the saved place,
+     * columns it does not carry are kept
+     */
+    private static boolean differs(ContentValues current, ContentValues place) {
+        for (String column : place.keySet()) {
+            Object value = place.get(column);
+            Object currentValue = current.get(column);
+            if (value == null ? currentValue != null : !value.equals(currentValue)) return true;
+        }
+        return false;
+    }
+
+    private static double roundCoordinate(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE) / COORDINATE_SCALE;
+    }
+
+    private static ContentValues[] readPlaces(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) throw new IOException("Not a place snapshot");
+        byte version = buffer.get();
+        if (version != VERSION && version != VERSION_NO_SCHEDULE) {
+            throw new IOException(String.format("Unsupported place snapshot version : %d", version));
+        }
+
+        // Every string takes at least its length byte
+        String[] strings = new String[readLength(buffer, 1)];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readLength(buffer, 1);
+            if (length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, UTF_8);
+        }
+
+        // Every place takes at least its flags and Place ID index
+        ContentValues[] values = new ContentValues[readLength(buffer, 2)];
+        int latitude = 0;
+        int longitude = 0;
+        for (int i = 0; i < values.length; i++) {
+            int flags = buffer.get();
+            ContentValues place = new ContentValues();
+            place.put(PlaceEntry.COLUMN_PLACE_ID, readString(buffer, strings));
+            // Missing values are stored as null, so that updating a saved place clears them
+            place.put(PlaceEntry.COLUMN_PLACE_NAME,
+                    (flags & FLAG_NAME) != 0 ? readString(buffer, strings) : null);
+            place.put(PlaceEntry.COLUMN_PLACE_ADDRESS,
+                    (flags & FLAG_ADDRESS) != 0 ? readString(buffer, strings) : null);
+            if ((flags & FLAG_COORDINATES) != 0) {
+                latitude += unzigzag(readVarint(buffer));
+                longitude += unzigzag(readVarint(buffer));
+                place.put(PlaceEntry.COLUMN_PLACE_LATITUDE, latitude / COORDINATE_SCALE);
+                place.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, longitude / COORDINATE_SCALE);
+            } else {
+                place.putNull(PlaceEntry.COLUMN_PLACE_LATITUDE);
+                place.putNull(PlaceEntry.COLUMN_PLACE_LONGITUDE);
+            }
+            if ((flags & FLAG_SCHEDULE) != 0) {
+                place.put(PlaceEntry.COLUMN_SCHEDULE_START, readVarint(buffer));
+                place.put(PlaceEntry.COLUMN_SCHEDULE_END, readVarint(buffer));
+            } else if (version != VERSION_NO_SCHEDULE) {
+                place.putNull(PlaceEntry.COLUMN_SCHEDULE_START);
+                place.putNull(PlaceEntry.COLUMN_SCHEDULE_END);
+            }
+            values[i] = place;
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer buffer, String[] strings) throws IOException {
+        int index = readVarint(buffer);
+        if (index < 0 || index >= strings.length) throw new IOException("Corrupt place snapshot string index");
+        return strings[index];
+    }
+
+    /**
+     * Reads a count or length, checking it against what is left of the snapshot so that a
+     * corrupt value fails cleanly rather than with a huge or negative allocation
+     *
+     * @param minBytes The fewest bytes each counted item takes
+     */
+    private static int readLength(ByteBuffer buffer, int minBytes) throws IOException {
+        int length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining() / minBytes) {
+            throw new IOException(String.format("Corrupt place snapshot length : %d", length));
+        }
+        return length;
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupt place snapshot varint");
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Buffers the encoded snapshot and writes it to the channel one buffer at a time
+     */
+    private static class ChannelWriter {
+
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelWriter(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        void writeInt(int value) throws IOException {
+            ensureRemaining(4);
+            mBuffer.putInt(value);
+        }
+
+        void writeByte(byte value) throws IOException {
+            ensureRemaining(1);
+            mBuffer.put(value);
+        }
+
+        void writeVarint(int value) throws IOException {
+            ensureRemaining(5);
+            while ((value & ~0x7F) != 0) {
+                mBuffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mBuffer.put((byte) value);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            if (bytes.length > mBuffer.capacity()) {
+                // Too large to buffer, write it straight through
+                flush();
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+                while (wrapped.hasRemaining()) mChannel.write(wrapped);
+                return;
+            }
+            ensureRemaining(bytes.length);
+            mBuffer.put(bytes);
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) mChannel.write(mBuffer);
+            mBuffer.clear();
+        }
+
+        private void ensureRemaining(int count) throws IOException {
+            if (mBuffer.remaining() < count) flush();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentValues;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.shushme.R;
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.places.Places;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Searches for places as the user types and adds all the selected ones at once
+ */
+public class PlaceSearchActivity extends AppCompatActivity implements
+        GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener,
+        PlaceSearchController.Listener {
+
+    // Constants
+    public static final String TAG = PlaceSearchActivity.class.getSimpleName();
+    // Half the size of the area around the user that results are favoured in
+    private static final double BIAS_DEGREES = 0.05;
+
+    // Member variables
+    private GoogleApiClient mClient;
+    private PlaceSearchBackend mBackend;
+    private PlaceSearchController mController;
+    private PredictionAdapter mAdapter;
+    private Button mAddButton;
+    private final Set<String> mSelectedPlaceIds = new LinkedHashSet<>();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_place_search);
+
+        mBackend = createBackend();
+        mController = new PlaceSearchController(mBackend, new Handler(), this);
+
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.predictions_recycler_view);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        mAdapter = new PredictionAdapter();
+        recyclerView.setAdapter(mAdapter);
+
+        mAddButton = (Button) findViewById(R.id.add_places_button);
+        updateAddButton();
+
+        EditText queryEditText = (EditText) findViewById(R.id.query_edit_text);
+        queryEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mController.onQueryChanged(s.toString());
+            }
+        });
+    }
+
+    /**
+     * Creates the backend to search with, the Places API unless a subclass supplies another one
+     *
+     * @return The backend
+     */
+    protected PlaceSearchBackend createBackend() {
+        mClient = new GoogleApiClient.Builder(this)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(LocationServices.API)
+                .addApi(Places.GEO_DATA_API)
+                .enableAutoManage(this, this)
+                .build();
+        return new PlacesApiSearchBackend(mClient);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mController.release();
+        super.onDestroy();
+    }
+
+    /***
+     * Favours the results around the last known location once connected
+     *
+     * @param connectionHint Bundle of data provided to clients by Google Play services
+     */
+    @Override
+    public void onConnected(@Nullable Bundle connectionHint) {
+        try {
+            Location location = LocationServices.FusedLocationApi.getLastLocation(mClient);
+            if (location == null) return;
+            mController.setLocationBias(new LatLngBounds(
+                    new LatLng(location.getLatitude() - BIAS_DEGREES, location.getLongitude() - BIAS_DEGREES),
+                    new LatLng(location.getLatitude() + BIAS_DEGREES, location.getLongitude() + BIAS_DEGREES)));
+        } catch (SecurityException securityException) {
+            // Search without a location bias if the app may not read the location
+            Log.e(TAG, securityException.getMessage());
+        }
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        Log.i(TAG, "API Client Connection Suspended!");
+    }
+
+    @Override
+    public void onConnectionFailed(@NonNull ConnectionResult result) {
+        Log.e(TAG, "API Client Connection Failed!");
+    }
+
+    @Override
+    public void onPredictions(String query, List<PlaceSearchBackend.Prediction> predictions, boolean interim) {
+        mAdapter.swapPredictions(predictions);
+    }
+
+    /***
+     * Button Click event handler to handle clicking the "Add selected" Button, looks up all the
+     * selected places in one request and saves them in one bulk insert
+     *
+     * @param view
+     */
+    public void onAddPlacesButtonClicked(View view) {
+        if (mSelectedPlaceIds.isEmpty()) return;
+        mAddButton.setEnabled(false);
+        mBackend.fetchPlaces(new ArrayList<>(mSelectedPlaceIds),
+                new PlaceSearchBackend.Callback<List<PlaceSearchBackend.PlaceDetails>>() {
+                    @Override
+                    public void onResult(List<PlaceSearchBackend.PlaceDetails> places) {
+                        if (places == null || places.isEmpty()) {
+                            Toast.makeText(PlaceSearchActivity.this,
+                                    getString(R.string.add_places_failed_message), Toast.LENGTH_LONG).show();
+                            updateAddButton();
+                            return;
+                        }
+                        savePlaces(places);
+                        setResult(RESULT_OK);
+                        finish();
+                    }
+                });
+    }
+
+    private void savePlaces(List<PlaceSearchBackend.PlaceDetails> places) {
+        ContentValues[] values = new ContentValues[places.size()];
+        for (int i = 0; i < values.length; i++) {
+            PlaceSearchBackend.PlaceDetails place = places.get(i);
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ID, place.placeId);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, place.name);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, place.address);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE, place.latitude);
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE, place.longitude);
+            values[i] = contentValues;
+        }
+        getContentResolver().bulkInsert(PlaceContract.PlaceEntry.CONTENT_URI, values);
+    }
+
+    private void updateAddButton() {
+        mAddButton.setEnabled(!mSelectedPlaceIds.isEmpty());
+        mAddButton.setText(getString(R.string.add_selected_places, mSelectedPlaceIds.size()));
+    }
+
+    /**
+     * Shows the predictions as checkable rows, the selection survives new predictions
+     */
+    private class PredictionAdapter extends RecyclerView.Adapter<PredictionAdapter.PredictionViewHolder> {
+
+        private List<PlaceSearchBackend.Prediction> mPredictions = Collections.emptyList();
+
+        void swapPredictions(List<PlaceSearchBackend.Prediction> predictions) {
+            mPredictions = predictions;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public PredictionViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(PlaceSearchActivity.this)
+                    .inflate(R.layout.item_prediction, parent, false);
+            return new PredictionViewHolder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(PredictionViewHolder holder, int position) {
+            PlaceSearchBackend.Prediction prediction = mPredictions.get(position);
+            holder.primaryTextView.setText(prediction.primaryText);
+            holder.secondaryTextView.setText(prediction.secondaryText);
+            holder.selectedCheckBox.setChecked(mSelectedPlaceIds.contains(prediction.placeId));
+        }
+
+        @Override
+        public int getItemCount() {
+            return mPredictions.size();
+        }
+
+        class PredictionViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+            TextView primaryTextView;
+            TextView secondaryTextView;
+            CheckBox selectedCheckBox;
+
+            PredictionViewHolder(View itemView) {
+                super(itemView);
+                primaryTextView = (TextView) itemView.findViewById(R.id.primary_text_view);
+                secondaryTextView = (TextView) itemView.findViewById(R.id.secondary_text_view);
+                selectedCheckBox = (CheckBox) itemView.findViewById(R.id.selected_checkbox);
+                itemView.setOnClickListener(this);
+            }
+
+            @Override
+            public void onClick(View v) {
+                int position = getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) return;
+                String placeId = mPredictions.get(position).placeId;
+                if (!mSelectedPlaceIds.remove(placeId)) mSelectedPlaceIds.add(placeId);
+                notifyItemChanged(position);
+                updateAddButton();
+            }
+        }
+    }
+}
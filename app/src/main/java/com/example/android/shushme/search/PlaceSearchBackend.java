@@ -0,0 +1,101 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.List;
+
+/**
+ * Source of place predictions and place details for the in-app place search, so that the
+ * Places API can be swapped for a local fake
+ */
+public interface PlaceSearchBackend {
+
+    /**
+     * A place suggested for a partial query
+     */
+    class Prediction {
+        public final String placeId;
+        public final String primaryText;
+        public final String secondaryText;
+
+        public Prediction(String placeId, String primaryText, String secondaryText) {
+            this.placeId = placeId;
+            this.primaryText = primaryText;
+            this.secondaryText = secondaryText;
+        }
+    }
+
+    /**
+     * The details of a place needed to save it
+     */
+    class PlaceDetails {
+        public final String placeId;
+        public final String name;
+        public final String address;
+        public final double latitude;
+        public final double longitude;
+
+        public PlaceDetails(String placeId, String name, String address, double latitude, double longitude) {
+            this.placeId = placeId;
+            this.name = name;
+            this.address = address;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /**
+     * Receives the result of a request on the main thread
+     */
+    interface Callback<T> {
+        /**
+         * @param result The result, or null if the request failed
+         */
+        void onResult(T result);
+    }
+
+    /**
+     * A request in flight
+     */
+    interface Request {
+        /**
+         * Cancels the request, its callback will not be called
+         */
+        void cancel();
+    }
+
+    /**
+     * Looks up the places matching a partial query
+     *
+     * @param query    The text typed so far
+     * @param bias     The area to favour results in, or null
+     * @param callback Receives the predictions
+     * @return The request, to cancel it once outdated, or null if it completed right away
+     */
+    Request autocomplete(String query, LatLngBounds bias, Callback<List<Prediction>> callback);
+
+    /**
+     * Looks up the details of several places in one request
+     *
+     * @param placeIds The Place IDs to look up
+     * @param callback Receives the details of the places found
+     * @return The request, to cancel it once outdated, or null if it completed right away
+     */
+    Request fetchPlaces(List<String> placeIds, Callback<List<PlaceDetails>> callback);
+}
@@ -0,0 +1,177 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.os.Handler;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns the keystrokes of the place search box into autocomplete requests.
+ * <p>
+ * Requests are sent once the user pauses typing, answers are kept in an LRU cache keyed by the
+ * query and the location bias, and a request still in flight is cancelled as soon as the query
+ * moves on. While waiting, the cached predictions of the longest typed prefix are shown,
+ * narrowed down to the ones still matching.
+ */
+public class PlaceSearchController {
+
+    // Constants
+    public static final long DEBOUNCE_MILLIS = 250;
+    private static final int CACHE_SIZE = 64; // queries
+
+    /**
+     * Receives the predictions to show
+     */
+    public interface Listener {
+        /**
+         * @param query       The query the predictions are for
+         * @param predictions The predictions, empty if there are none or the request failed
+         * @param interim     true while the predictions come from a shorter cached prefix
+         */
+        void onPredictions(String query, List<PlaceSearchBackend.Prediction> predictions, boolean interim);
+    }
+
+    private final PlaceSearchBackend mBackend;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final LruCache<String, List<PlaceSearchBackend.Prediction>> mCache =
+            new LruCache<>(CACHE_SIZE);
+    private LatLngBounds mBias;
+    private String mQuery = "";
+    private PlaceSearchBackend.Request mInFlight;
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search(mQuery);
+        }
+    };
+
+    public PlaceSearchController(PlaceSearchBackend backend, Handler handler, Listener listener) {
+        mBackend = backend;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the area to favour results in, cached results for another area are not reused
+     *
+     * @param bias The area, or null for none
+     */
+    public void setLocationBias(LatLngBounds bias) {
+        mBias = bias;
+    }
+
+    /**
+     * Called on every keystroke with the current text of the search box
+     *
+     * @param text The text typed so far
+     */
+    public void onQueryChanged(String text) {
+        String query = normalize(text);
+        if (query.equals(mQuery)) return;
+        mQuery = query;
+        mHandler.removeCallbacks(mSearchRunnable);
+        cancelInFlight();
+
+        if (query.isEmpty()) {
+            mListener.onPredictions(query, Collections.<PlaceSearchBackend.Prediction>emptyList(), false);
+            return;
+        }
+        List<PlaceSearchBackend.Prediction> cached = mCache.get(cacheKey(query));
+        if (cached != null) {
+            mListener.onPredictions(query, cached, false);
+            return;
+        }
+        List<PlaceSearchBackend.Prediction> interim = findPrefixPredictions(query);
+        if (interim != null) mListener.onPredictions(query, interim, true);
+        mHandler.postDelayed(mSearchRunnable, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Stops any pending or in-flight search, for when the screen goes away
+     */
+    public void release() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        cancelInFlight();
+    }
+
+    private void search(final String query) {
+        final String key = cacheKey(query);
+        mInFlight = mBackend.autocomplete(query, mBias,
+                new PlaceSearchBackend.Callback<List<PlaceSearchBackend.Prediction>>() {
+                    @Override
+                    public void onResult(List<PlaceSearchBackend.Prediction> predictions) {
+                        // Drop answers for a query the user has moved on from
+                        if (!query.equals(mQuery)) return;
+                        mInFlight = null;
+                        if (predictions == null) {
+                            predictions = Collections.emptyList();
+                        } else {
+                            predictions = Collections.unmodifiableList(predictions);
+                            mCache.put(key, predictions);
+                        }
+                        mListener.onPredictions(query, predictions, false);
+                    }
+                });
+    }
+
+    private void cancelInFlight() {
+        if (mInFlight != null) {
+            mInFlight.cancel();
+            mInFlight = null;
+        }
+    }
+
+    /**
+     * Narrows down the cached predictions of the longest cached prefix of the query to those
+     * containing the last, partly typed word
+     */
+    private List<PlaceSearchBackend.Prediction> findPrefixPredictions(String query) {
+        for (int length = query.length() - 1; length > 0; length--) {
+            List<PlaceSearchBackend.Prediction> cached = mCache.get(cacheKey(query.substring(0, length)));
+            if (cached == null) continue;
+            String lastWord = query.substring(query.lastIndexOf(' ') + 1);
+            List<PlaceSearchBackend.Prediction> matching = new ArrayList<>();
+            for (PlaceSearchBackend.Prediction prediction : cached) {
+                String text = (prediction.primaryText + " " + prediction.secondaryText)
+                        .toLowerCase(Locale.getDefault());
+                if (text.contains(lastWord)) matching.add(prediction);
+            }
+            return matching;
+        }
+        return null;
+    }
+
+    private String cacheKey(String query) {
+        if (mBias == null) return query;
+        // Round the bias so that small moves of the user still hit the cache
+        return String.format(Locale.US, "%s|%.2f,%.2f", query,
+                mBias.getCenter().latitude, mBias.getCenter().longitude);
+    }
+
+    private static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.getDefault());
+    }
+}
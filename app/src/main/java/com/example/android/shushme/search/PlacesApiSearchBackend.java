@@ -0,0 +1,132 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.location.places.AutocompletePrediction;
+import com.google.android.gms.location.places.AutocompletePredictionBuffer;
+import com.google.android.gms.location.places.Place;
+import com.google.android.gms.location.places.PlaceBuffer;
+import com.google.android.gms.location.places.Places;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Place search backed by the autocomplete and place details calls of the Places GeoDataApi
+ */
+public class PlacesApiSearchBackend implements PlaceSearchBackend {
+
+    // Constants
+    public static final String TAG = PlacesApiSearchBackend.class.getSimpleName();
+
+    private final GoogleApiClient mClient;
+
+    /**
+     * @param client A client with the Places.GEO_DATA_API added
+     */
+    public PlacesApiSearchBackend(GoogleApiClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public Request autocomplete(String query, LatLngBounds bias,
+                                final Callback<List<Prediction>> callback) {
+        if (!mClient.isConnected()) {
+            callback.onResult(null);
+            return null;
+        }
+        PendingResult<AutocompletePredictionBuffer> pendingResult =
+                Places.GeoDataApi.getAutocompletePredictions(mClient, query, bias, null);
+        pendingResult.setResultCallback(new ResultCallback<AutocompletePredictionBuffer>() {
+            @Override
+            public void onResult(@NonNull AutocompletePredictionBuffer buffer) {
+                if (!buffer.getStatus().isSuccess()) {
+                    Log.e(TAG, String.format("Autocomplete failed : %s", buffer.getStatus()));
+                    buffer.release();
+                    callback.onResult(null);
+                    return;
+                }
+                // Copy the predictions out so that the buffer can be released right away
+                List<Prediction> predictions = new ArrayList<>(buffer.getCount());
+                for (AutocompletePrediction prediction : buffer) {
+                    predictions.add(new Prediction(prediction.getPlaceId(),
+                            prediction.getPrimaryText(null).toString(),
+                            prediction.getSecondaryText(null).toString()));
+                }
+                buffer.release();
+                callback.onResult(predictions);
+            }
+        });
+        return new PendingRequest(pendingResult);
+    }
+
+    @Override
+    public Request fetchPlaces(List<String> placeIds, final Callback<List<PlaceDetails>> callback) {
+        if (!mClient.isConnected() || placeIds.isEmpty()) {
+            callback.onResult(null);
+            return null;
+        }
+        PendingResult<PlaceBuffer> pendingResult = Places.GeoDataApi.getPlaceById(mClient,
+                placeIds.toArray(new String[placeIds.size()]));
+        pendingResult.setResultCallback(new ResultCallback<PlaceBuffer>() {
+            @Override
+            public void onResult(@NonNull PlaceBuffer places) {
+                if (!places.getStatus().isSuccess()) {
+                    Log.e(TAG, String.format("Place lookup failed : %s", places.getStatus()));
+                    places.release();
+                    callback.onResult(null);
+                    return;
+                }
+                List<PlaceDetails> details = new ArrayList<>(places.getCount());
+                for (Place place : places) {
+                    details.add(new PlaceDetails(place.getId(),
+                            place.getName().toString(),
+                            place.getAddress().toString(),
+                            place.getLatLng().latitude,
+                            place.getLatLng().longitude));
+                }
+                places.release();
+                callback.onResult(details);
+            }
+        });
+        return new PendingRequest(pendingResult);
+    }
+
+    /**
+     * Cancels the underlying PendingResult, which also drops its result callback
+     */
+    private static class PendingRequest implements Request {
+
+        private final PendingResult<?> mPendingResult;
+
+        PendingRequest(PendingResult<?> pendingResult) {
+            mPendingResult = pendingResult;
+        }
+
+        @Override
+        public void cancel() {
+            mPendingResult.cancel();
+        }
+    }
+}
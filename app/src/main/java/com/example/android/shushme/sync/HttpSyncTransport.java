@@ -0,0 +1,86 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts the sync payloads to a server over HTTP.
+ * <p>
+ * The payloads are gzipped JSON in both directions and travel as an opaque media type of their
+ * own. They are not sent with a gzip Content-Encoding, since proxies and HTTP stacks are free to
+ * decode or re-encode a body under that header, which would hand {@link SyncPayload#decode} plain
+ * JSON. For the same reason the response is asked for without any transfer encoding.
+ */
+public class HttpSyncTransport implements SyncTransport {
+
+    public static final String CONTENT_TYPE = "application/x-shushme-sync+gzip";
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private final URL mUrl;
+
+    public HttpSyncTransport(URL url) {
+        mUrl = url;
+    }
+
+    @Override
+    public byte[] exchange(byte[] request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("Accept", CONTENT_TYPE);
+            // Otherwise HttpURLConnection asks for gzip and may unzip the response itself
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            connection.setFixedLengthStreamingMode(request.length);
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(request);
+            } finally {
+                out.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException(String.format("Sync server responded %d", responseCode));
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    response.write(buffer, 0, count);
+                }
+                return response.toByteArray();
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
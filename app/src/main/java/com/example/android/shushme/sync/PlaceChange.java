@@ -0,0 +1,99 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The synced state of one place, as exchanged with the sync server.
+ * <p>
+ * When uploaded, the version is the server version the local change is based on. When
+ * downloaded, it is the version the server gave the row.
+ */
+public class PlaceChange {
+
+    // Short keys, every byte counts once there are thousands of places
+    private static final String KEY_PLACE_ID = "id";
+    private static final String KEY_NAME = "n";
+    private static final String KEY_ADDRESS = "a";
+    private static final String KEY_LATITUDE = "lat";
+    private static final String KEY_LONGITUDE = "lng";
+    private static final String KEY_SCHEDULE_START = "s";
+    private static final String KEY_SCHEDULE_END = "e";
+    private static final String KEY_DELETED = "d";
+    private static final String KEY_VERSION = "v";
+
+    public final String placeId;
+    public final String name;
+    public final String address;
+    public final Double latitude;
+    public final Double longitude;
+    public final Integer scheduleStart;
+    public final Integer scheduleEnd;
+    public final boolean deleted;
+    public final long version;
+
+    public PlaceChange(String placeId, String name, String address, Double latitude,
+                       Double longitude, Integer scheduleStart, Integer scheduleEnd,
+                       boolean deleted, long version) {
+        this.placeId = placeId;
+        this.name = name;
+        this.address = address;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.scheduleStart = scheduleStart;
+        this.scheduleEnd = scheduleEnd;
+        this.deleted = deleted;
+        this.version = version;
+    }
+
+    /**
+     * @return The same change at another version
+     */
+    public PlaceChange withVersion(long version) {
+        return new PlaceChange(placeId, name, address, latitude, longitude, scheduleStart,
+                scheduleEnd, deleted, version);
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(KEY_PLACE_ID, placeId);
+        json.put(KEY_VERSION, version);
+        // A tombstone carries nothing but its ID
+        if (deleted) return json.put(KEY_DELETED, true);
+        json.putOpt(KEY_NAME, name);
+        json.putOpt(KEY_ADDRESS, address);
+        json.putOpt(KEY_LATITUDE, latitude);
+        json.putOpt(KEY_LONGITUDE, longitude);
+        json.putOpt(KEY_SCHEDULE_START, scheduleStart);
+        json.putOpt(KEY_SCHEDULE_END, scheduleEnd);
+        return json;
+    }
+
+    static PlaceChange fromJson(JSONObject json) throws JSONException {
+        return new PlaceChange(json.getString(KEY_PLACE_ID),
+                json.has(KEY_NAME) ? json.getString(KEY_NAME) : null,
+                json.has(KEY_ADDRESS) ? json.getString(KEY_ADDRESS) : null,
+                json.has(KEY_LATITUDE) ? json.getDouble(KEY_LATITUDE) : null,
+                json.has(KEY_LONGITUDE) ? json.getDouble(KEY_LONGITUDE) : null,
+                json.has(KEY_SCHEDULE_START) ? json.getInt(KEY_SCHEDULE_START) : null,
+                json.has(KEY_SCHEDULE_END) ? json.getInt(KEY_SCHEDULE_END) : null,
+                json.optBoolean(KEY_DELETED, false),
+                json.getLong(KEY_VERSION));
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the places in sync with a sync server by exchanging only the rows changed on either
+ * side since the last sync.
+ * <p>
+ * Local changes are found through the dirty column and uploaded in batches, each answered with
+ * a page of the server changes since the sync token. Every page is applied in one transaction
+ * and the token is saved right after, so an interrupted sync picks up where it stopped. A place
+ * changed locally while its upload was in flight keeps the local change for the next sync.
+ * Groups are set up per device and are not synced.
+ * <p>
+ * Conflicts are settled by the server, as set out in {@link SyncTransport}: an edit beats a
+ * tombstone, and between two edits the first to reach the server wins. The engine takes the
+ * copy of a place the server sends back as the winner and never merges changes itself.
+ */
+public class PlaceSyncEngine {
+
+    // Constants
+    public static final String TAG = PlaceSyncEngine.class.getSimpleName();
+    // Local changes uploaded per request, well below the SQLite limit of 999 bound arguments
+    static final int BATCH_SIZE = 200;
+
+    private static final String PREFERENCES_NAME = "place_sync";
+    private static final String KEY_SYNC_TOKEN = "sync_token";
+
+    private static final String[] SYNC_PROJECTION = {
+            PlaceEntry.COLUMN_PLACE_ID,
+            PlaceEntry.COLUMN_PLACE_NAME,
+            PlaceEntry.COLUMN_PLACE_ADDRESS,
+            PlaceEntry.COLUMN_PLACE_LATITUDE,
+            PlaceEntry.COLUMN_PLACE_LONGITUDE,
+            PlaceEntry.COLUMN_SCHEDULE_START,
+            PlaceEntry.COLUMN_SCHEDULE_END,
+            PlaceEntry.COLUMN_DELETED,
+            PlaceEntry.COLUMN_VERSION,
+            PlaceEntry.COLUMN_DIRTY
+    };
+    private static final int INDEX_DIRTY = 9;
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+    private final SyncTransport mTransport;
+
+    public PlaceSyncEngine(Context context, SyncTransport transport) {
+        mResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mTransport = transport;
+    }
+
+    /**
+     * Uploads the local changes and applies the server ones, called on a background thread
+     *
+     * @return The number of places changed locally by the sync
+     * @throws IOException if the sync stopped early, what was applied so far is kept
+     */
+    public int sync() throws IOException {
+        // The dirty value of each uploaded place, to tell whether it changed again since
+        Map<String, Long> uploaded = new HashMap<>();
+        List<PlaceChange> localChanges = loadLocalChanges(uploaded);
+
+        String token = mPreferences.getString(KEY_SYNC_TOKEN, null);
+        int next = 0;
+        int applied = 0;
+        boolean more;
+        do {
+            List<PlaceChange> batch = localChanges.subList(next,
+                    Math.min(next + BATCH_SIZE, localChanges.size()));
+            next += batch.size();
+            SyncPayload response = SyncPayload.decode(
+                    mTransport.exchange(new SyncPayload(token, batch, false).encode()));
+            applied += apply(response.changes, uploaded);
+            token = response.token;
+            mPreferences.edit().putString(KEY_SYNC_TOKEN, token).apply();
+            more = response.more;
+        } while (more || next < localChanges.size());
+        Log.d(TAG, String.format("Uploaded %d changes, applied %d", localChanges.size(), applied));
+        return applied;
+    }
+
+    /**
+     * Forgets the sync token so that the next sync downloads every place again, such as after
+     * switching to another server
+     */
+    public void resetToken() {
+        mPreferences.edit().remove(KEY_SYNC_TOKEN).apply();
+    }
+
+    private List<PlaceChange> loadLocalChanges(Map<String, Long> dirtyValues) {
+        List<PlaceChange> changes = new ArrayList<>();
+        Cursor data = mResolver.query(PlaceEntry.SYNC_ADAPTER_URI,
+                SYNC_PROJECTION,
+                PlaceEntry.COLUMN_DIRTY + "!=0",
+                null,
+                PlaceEntry._ID);
+        if (data == null) return changes;
+        try {
+            while (data.moveToNext()) {
+                PlaceChange change = readChange(data);
+                changes.add(change);
+                dirtyValues.put(change.placeId, data.getLong(INDEX_DIRTY));
+            }
+        } finally {
+            data.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Applies a page of server changes in one transaction
+     *
+     * @param changes  The server changes
+     * @param uploaded The dirty value of each uploaded place
+     * @return The number of places changed
+     */
+    private int apply(List<PlaceChange> changes, Map<String, Long> uploaded) throws IOException {
+        if (changes.isEmpty()) return 0;
+        Map<String, Long> localDirty = loadDirtyValues(changes);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(changes.size());
+        String selection = PlaceEntry.COLUMN_PLACE_ID + "=?";
+        for (PlaceChange change : changes) {
+            String[] selectionArgs = new String[]{change.placeId};
+            Long dirty = localDirty.get(change.placeId);
+            if (dirty != null && dirty != 0 && !dirty.equals(uploaded.get(change.placeId))) {
+                // Changed locally since the upload, the local change goes out next time based
+                // on the version just seen
+                operations.add(ContentProviderOperation.newUpdate(PlaceEntry.SYNC_ADAPTER_URI)
+                        .withSelection(selection, selectionArgs)
+                        .withValue(PlaceEntry.COLUMN_VERSION, change.version)
+                        .build());
+            } else if (change.deleted) {
+                if (dirty == null) continue;
+                operations.add(ContentProviderOperation.newDelete(PlaceEntry.SYNC_ADAPTER_URI)
+                        .withSelection(selection, selectionArgs)
+                        .build());
+            } else if (dirty == null) {
+                operations.add(ContentProviderOperation.newInsert(PlaceEntry.SYNC_ADAPTER_URI)
+                        .withValues(toValues(change))
+                        .build());
+            } else {
+                // Update rather than replace, to keep the local group of the place
+                operations.add(ContentProviderOperation.newUpdate(PlaceEntry.SYNC_ADAPTER_URI)
+                        .withSelection(selection, selectionArgs)
+                        .withValues(toValues(change))
+                        .build());
+            }
+        }
+        try {
+            mResolver.applyBatch(PlaceContract.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Unable to apply sync changes", e);
+        }
+        return operations.size();
+    }
+
+    /**
+     * @return The dirty value of each of the places that exists locally
+     */
+    private Map<String, Long> loadDirtyValues(List<PlaceChange> changes) {
+        Map<String, Long> dirtyValues = new HashMap<>();
+        StringBuilder selection = new StringBuilder(PlaceEntry.COLUMN_PLACE_ID + " IN (");
+        String[] selectionArgs = new String[changes.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = changes.get(i).placeId;
+        }
+        selection.append(')');
+        Cursor data = mResolver.query(PlaceEntry.SYNC_ADAPTER_URI,
+                new String[]{PlaceEntry.COLUMN_PLACE_ID, PlaceEntry.COLUMN_DIRTY},
+                selection.toString(),
+                selectionArgs,
+                null);
+        if (data == null) return dirtyValues;
+        try {
+            while (data.moveToNext()) {
+                dirtyValues.put(data.getString(0), data.getLong(1));
+            }
+        } finally {
+            data.close();
+        }
+        return dirtyValues;
+    }
+
+    private static PlaceChange readChange(Cursor data) {
+        return new PlaceChange(data.getString(0),
+                data.getString(1),
+                data.getString(2),
+                data.isNull(3) ? null : data.getDouble(3),
+                data.isNull(4) ? null : data.getDouble(4),
+                data.isNull(5) ? null : data.getInt(5),
+                data.isNull(6) ? null : data.getInt(6),
+                data.getInt(7) != 0,
+                data.getLong(8));
+    }
+
+    private static ContentValues toValues(PlaceChange change) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_ID, change.placeId);
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, change.name);
+        values.put(PlaceEntry.COLUMN_PLACE_ADDRESS, change.address);
+        values.put(PlaceEntry.COLUMN_PLACE_LATITUDE, change.latitude);
+        values.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, change.longitude);
+        values.put(PlaceEntry.COLUMN_SCHEDULE_START, change.scheduleStart);
+        values.put(PlaceEntry.COLUMN_SCHEDULE_END, change.scheduleEnd);
+        values.put(PlaceEntry.COLUMN_DELETED, 0);
+        values.put(PlaceEntry.COLUMN_VERSION, change.version);
+        values.put(PlaceEntry.COLUMN_DIRTY, 0);
+        return values;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A batch of place changes together with a sync token, sent both ways as gzipped JSON.
+ * <p>
+ * In a request the token is the one of the last sync and the changes are local ones to upload.
+ * In a response the token is to be sent with the next request, the changes are the ones made
+ * on the server since the request token, and more tells that another page is waiting.
+ */
+public class SyncPayload {
+
+    private static final String KEY_TOKEN = "token";
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_MORE = "more";
+
+    public final String token;
+    public final List<PlaceChange> changes;
+    public final boolean more;
+
+    public SyncPayload(String token, List<PlaceChange> changes, boolean more) {
+        this.token = token;
+        this.changes = Collections.unmodifiableList(new ArrayList<>(changes));
+        this.more = more;
+    }
+
+    /**
+     * @return The payload as gzipped JSON
+     */
+    public byte[] encode() throws IOException {
+        try {
+            JSONArray changes = new JSONArray();
+            for (PlaceChange change : this.changes) {
+                changes.put(change.toJson());
+            }
+            JSONObject json = new JSONObject();
+            json.putOpt(KEY_TOKEN, token);
+            json.put(KEY_CHANGES, changes);
+            json.put(KEY_MORE, more);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream out = new GZIPOutputStream(bytes);
+            try {
+                out.write(json.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            return bytes.toByteArray();
+        } catch (JSONException e) {
+            throw new IOException("Unable to encode sync payload", e);
+        }
+    }
+
+    /**
+     * @param data The gzipped JSON made by {@link #encode}
+     * @return The payload
+     */
+    public static SyncPayload decode(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        try {
+            JSONObject json = new JSONObject(bytes.toString("UTF-8"));
+            JSONArray array = json.getJSONArray(KEY_CHANGES);
+            List<PlaceChange> changes = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                changes.add(PlaceChange.fromJson(array.getJSONObject(i)));
+            }
+            return new SyncPayload(json.isNull(KEY_TOKEN) ? null : json.getString(KEY_TOKEN),
+                    changes, json.optBoolean(KEY_MORE, false));
+        } catch (JSONException e) {
+            throw new IOException("Malformed sync payload", e);
+        }
+    }
+}
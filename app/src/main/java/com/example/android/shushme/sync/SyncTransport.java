@@ -0,0 +1,48 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.IOException;
+
+/**
+ * Carries the encoded sync payloads to the sync server and back.
+ * <p>
+ * The server side of the contract, which {@link PlaceSyncEngine} relies on:
+ * <ul>
+ * <li>Each accepted change gets a new version, higher than any before it, and the sync token
+ * is the highest version sent back so far. A response holds the changes after the token of the
+ * request, oldest first, at most a page of them, and says whether more are waiting.</li>
+ * <li>An uploaded change based on the current server version, or to a place the server does
+ * not know, is accepted as is.</li>
+ * <li>Otherwise the place changed on the server since the client last saw it. An edit beats a
+ * tombstone, whichever side it comes from, so that a quiet zone is never lost to a conflict.
+ * Between two edits, or two tombstones, the first one to reach the server wins.</li>
+ * <li>A rejected change is answered with the server copy of the place regardless of the token,
+ * so that the client replaces its change with the winner.</li>
+ * </ul>
+ */
+public interface SyncTransport {
+
+    /**
+     * Sends a request and waits for the response, called on a background thread
+     *
+     * @param request The encoded request {@link SyncPayload}
+     * @return The encoded response {@link SyncPayload}
+     * @throws IOException if the server could not be reached or refused the request
+     */
+    byte[] exchange(byte[] request) throws IOException;
+}
@@ -0,0 +1,253 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.Intent;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded day of motion through {@link FakeMotionStateSource} into a real
+ * {@link AdaptiveMonitor}, adapting the way {@link GeofenceScheduleService} does whenever the
+ * monitor starts it, and checks the ENTERs it gets against the app before adapting, which
+ * registered fixed, fully responsive geofences once and detected no motion at all.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class AdaptiveMonitorReplayTest {
+
+    public static final String TAG = AdaptiveMonitorReplayTest.class.getSimpleName();
+    private static final long MINUTE = 60 * 1000;
+    private static final long DAY_MILLIS = 24 * 60 * MINUTE;
+    // The least responsive mode, the latest an ENTER may come
+    private static final long MAX_ENTER_DELAY = 5 * MINUTE;
+
+    /**
+     * A stretch of the recorded day spent in one motion state
+     */
+    private static class Segment {
+        final long durationMillis;
+        final int state;
+        final float nearestPlaceMeters;
+        // The saved place the user is at, null if none
+        final String placeId;
+
+        Segment(long minutes, int state, float nearestPlaceMeters, String placeId) {
+            this.durationMillis = minutes * MINUTE;
+            this.state = state;
+            this.nearestPlaceMeters = nearestPlaceMeters;
+            this.placeId = placeId;
+        }
+    }
+
+    // A commuting day, home and the gym are saved places, the office is not
+    private static final Segment[] DAY = {
+            new Segment(8 * 60, MotionStateSource.STATE_STILL, 0, "home"),
+            new Segment(15, MotionStateSource.STATE_ON_FOOT, 500, null),
+            new Segment(40, MotionStateSource.STATE_IN_VEHICLE, 10000, null),
+            new Segment(4 * 60, MotionStateSource.STATE_STILL, 5000, null),
+            new Segment(30, MotionStateSource.STATE_ON_FOOT, 1000, null),
+            new Segment(4 * 60, MotionStateSource.STATE_STILL, 5000, null),
+            new Segment(20, MotionStateSource.STATE_IN_VEHICLE, 3000, null),
+            new Segment(10, MotionStateSource.STATE_ON_FOOT, 100, null),
+            new Segment(60, MotionStateSource.STATE_ON_FOOT, 0, "gym"),
+            new Segment(20, MotionStateSource.STATE_IN_VEHICLE, 5000, null),
+            new Segment(10, MotionStateSource.STATE_ON_FOOT, 100, null),
+            new Segment(4 * 60 + 35, MotionStateSource.STATE_STILL, 0, "home")
+    };
+
+    /**
+     * A stay at a saved place
+     */
+    private static class Visit {
+        final String placeId;
+        final long arrivedAt;
+        long enteredAt = -1;
+
+        Visit(String placeId, long arrivedAt) {
+            this.placeId = placeId;
+            this.arrivedAt = arrivedAt;
+        }
+    }
+
+    /**
+     * Stands in for Play Services: geofences added in a suspended mode are removed, the others
+     * alert after their responsiveness, and adding them while inside a place triggers its
+     * initial ENTER. The ENTERs go through {@link GeofencePresence} like in the receiver.
+     */
+    private static class FakeGeofences implements AdaptiveMonitor.Registrar {
+        final AdaptiveMonitor monitor;
+        final GeofencePresence presence = new GeofencePresence(RuntimeEnvironment.application);
+        final List<Visit> visits = new ArrayList<>();
+        int registrations;
+        int repeatedEnters;
+        boolean registered;
+        long responsivenessMillis;
+        long now;
+        Visit visit;
+
+        FakeGeofences(AdaptiveMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void registerAllGeofences() {
+            AdaptiveMonitor.Mode mode = monitor.getMode();
+            registrations++;
+            registered = !mode.suspended;
+            responsivenessMillis = mode.responsivenessMillis;
+            if (registered && visit != null) enter(now);
+        }
+
+        /**
+         * Moves to the place of the segment, alerting once the geofences noticed
+         */
+        void moveTo(Segment segment) {
+            String placeId = segment.placeId;
+            if (visit != null && !visit.placeId.equals(placeId)) {
+                presence.endVisits(Collections.singleton(visit.placeId));
+                visit = null;
+            }
+            if (placeId == null || visit != null) return;
+            visit = new Visit(placeId, now);
+            visits.add(visit);
+            if (registered && responsivenessMillis < segment.durationMillis) {
+                enter(now + responsivenessMillis);
+            }
+        }
+
+        private void enter(long time) {
+            if (presence.startVisits(Collections.singleton(visit.placeId), time).isEmpty()) {
+                repeatedEnters++;
+            } else {
+                visit.enteredAt = time;
+            }
+        }
+    }
+
+    /**
+     * The work done while replaying the day
+     */
+    private static class Replay {
+        final AdaptiveMonitor monitor = new AdaptiveMonitor(RuntimeEnvironment.application);
+        final FakeMotionStateSource source = new FakeMotionStateSource(monitor);
+        final FakeGeofences geofences = new FakeGeofences(monitor);
+        long detections;
+        long suspendedMillis;
+        long fullyResponsiveMillis;
+
+        Replay() {
+            // Monitoring starts with every geofence registered in the current mode
+            monitor.start(source);
+            geofences.registerAllGeofences();
+        }
+
+        void play(Segment segment) {
+            // The user gets there before the new motion state is detected
+            geofences.moveTo(segment);
+            source.setState(segment.state);
+            // Run what the monitor asked GeofenceScheduleService for
+            Intent intent;
+            while ((intent = ShadowApplication.getInstance().getNextStartedService()) != null) {
+                assertEquals(GeofenceScheduleService.ACTION_MOTION_CHANGED, intent.getAction());
+                monitor.adapt(segment.nearestPlaceMeters, geofences, source);
+            }
+
+            AdaptiveMonitor.Mode mode = monitor.getMode();
+            detections += segment.durationMillis / source.getIntervalMillis();
+            if (mode.suspended) suspendedMillis += segment.durationMillis;
+            if (!mode.suspended && mode.responsivenessMillis == 0) {
+                fullyResponsiveMillis += segment.durationMillis;
+            }
+            geofences.now += segment.durationMillis;
+        }
+    }
+
+    @Test
+    public void adaptingDeliversTheEntersOfFixedGeofences() {
+        Replay replay = new Replay();
+        for (Segment segment : DAY) {
+            replay.play(segment);
+        }
+        assertEquals(DAY_MILLIS, replay.geofences.now);
+
+        // Fixed geofences alert on arrival at each place, the adaptive ones at most one
+        // responsiveness later, and exactly once however often they are registered again
+        List<Visit> visits = replay.geofences.visits;
+        assertEquals(3, visits.size());
+        for (Visit visit : visits) {
+            Log.i(TAG, String.format(Locale.US, "%s: entered %d min after arriving",
+                    visit.placeId, (visit.enteredAt - visit.arrivedAt) / MINUTE));
+            assertTrue(visit.placeId + " was never entered", visit.enteredAt >= 0);
+            assertTrue(visit.enteredAt - visit.arrivedAt <= MAX_ENTER_DELAY);
+        }
+        Log.i(TAG, String.format(Locale.US,
+                "adaptive: %d detections, %d registrations, %d repeated ENTERs, " +
+                        "%d min suspended, %d min fully responsive; " +
+                        "fixed: 0 detections, 1 registration, %d min fully responsive",
+                replay.detections, replay.geofences.registrations,
+                replay.geofences.repeatedEnters, replay.suspendedMillis / MINUTE,
+                replay.fullyResponsiveMillis / MINUTE, DAY_MILLIS / MINUTE));
+
+        // Every geofence is gone while still far from every place
+        assertEquals(8 * 60 * MINUTE, replay.suspendedMillis);
+        // Full responsiveness is only paid for on foot near a place, not all day
+        assertTrue(replay.fullyResponsiveMillis * 10 < DAY_MILLIS);
+        // Registering again is only paid for on a change of motion state
+        assertTrue(replay.geofences.registrations <= replay.source.getStateChanges() + 1);
+        // The detections the fixed geofences did without slow down while sitting still, below
+        // the rate of the default mode
+        assertTrue(replay.detections < DAY_MILLIS / AdaptiveMonitor.Mode.DEFAULT.activityIntervalMillis);
+    }
+
+    @Test
+    public void walkingNearAPlaceIsTheMostResponsive() {
+        AdaptiveMonitor.Mode mode = AdaptiveMonitor.decide(MotionStateSource.STATE_ON_FOOT, 100);
+        assertEquals(0, mode.responsivenessMillis);
+        assertTrue(mode.activityIntervalMillis < AdaptiveMonitor.Mode.DEFAULT.activityIntervalMillis);
+    }
+
+    @Test
+    public void unknownLocationIsTreatedAsNearby() {
+        AdaptiveMonitor.Mode mode = AdaptiveMonitor.decide(MotionStateSource.STATE_STILL, -1);
+        assertFalse(mode.suspended);
+    }
+
+    @Test
+    public void sameModeNeedsNoRegistration() {
+        AdaptiveMonitor.Mode still = AdaptiveMonitor.decide(MotionStateSource.STATE_STILL, 5000);
+        assertFalse(AdaptiveMonitor.needsRegistration(still,
+                AdaptiveMonitor.decide(MotionStateSource.STATE_STILL, 9000)));
+        assertTrue(AdaptiveMonitor.needsRegistration(still,
+                AdaptiveMonitor.decide(MotionStateSource.STATE_STILL, 0)));
+    }
+}
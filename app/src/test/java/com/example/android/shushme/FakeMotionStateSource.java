@@ -0,0 +1,72 @@
+package com.example.android.shushme;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+/**
+ * Motion state source driven by hand, for replaying recorded tracks without the activity
+ * recognition of Google Play Services.
+ */
+public class FakeMotionStateSource implements MotionStateSource {
+
+    private final Listener mListener;
+    private int mState = STATE_UNKNOWN;
+    private long mIntervalMillis = -1;
+    private int mStateChanges;
+
+    /**
+     * @param listener Receives the states set while the source is started
+     */
+    public FakeMotionStateSource(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void start(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void stop() {
+        mIntervalMillis = -1;
+    }
+
+    /**
+     * Reports the given state to the listener if the source is started and the state changed
+     *
+     * @param state One of the STATE_ constants other than STATE_UNKNOWN
+     */
+    public void setState(int state) {
+        if (mIntervalMillis < 0 || state == mState) return;
+        mState = state;
+        mStateChanges++;
+        mListener.onMotionStateChanged(state);
+    }
+
+    /**
+     * @return The interval asked for by the last start, -1 while stopped
+     */
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * @return The number of state changes reported to the listener
+     */
+    public int getStateChanges() {
+        return mStateChanges;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.android.shushme.preview;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Offline previews made of a solid color picked from the Place ID, served after a simulated
+ * latency with a fixed attribution. Records the fetches it served so that caching and request
+ * coalescing can be checked, and can hold them back so that loads stay in flight.
+ */
+public class FakePreviewFetcher implements PreviewFetcher {
+
+    public static final String ATTRIBUTIONS = "Photo by a fake";
+
+    private final long mLatencyMillis;
+    private final Set<String> mMissing;
+    private final List<String> mFetched = Collections.synchronizedList(new ArrayList<String>());
+    private volatile CountDownLatch mGate;
+
+    /**
+     * @param latencyMillis The simulated response time
+     * @param missing       The Place IDs to answer with no preview
+     */
+    public FakePreviewFetcher(long latencyMillis, Set<String> missing) {
+        mLatencyMillis = latencyMillis;
+        mMissing = missing;
+    }
+
+    @Override
+    public Preview fetch(String placeId, int width, int height) throws IOException {
+        CountDownLatch gate = mGate;
+        if (gate != null) awaitUninterruptibly(gate);
+        SystemClock.sleep(mLatencyMillis);
+        mFetched.add(placeId);
+        if (mMissing.contains(placeId)) return null;
+        int hash = placeId.hashCode();
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(Color.rgb(hash & 0xff, (hash >> 8) & 0xff, (hash >> 16) & 0xff));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return new Preview(out.toByteArray(), ATTRIBUTIONS);
+    }
+
+    /**
+     * Makes the fetches started from now on wait for {@link #resume}
+     */
+    public void hold() {
+        mGate = new CountDownLatch(1);
+    }
+
+    /**
+     * Lets the held fetches go on
+     */
+    public void resume() {
+        CountDownLatch gate = mGate;
+        mGate = null;
+        if (gate != null) gate.countDown();
+    }
+
+    /**
+     * @return The Place IDs fetched so far, in order
+     */
+    public List<String> getFetched() {
+        synchronized (mFetched) {
+            return new ArrayList<>(mFetched);
+        }
+    }
+
+    public int getFetchCount() {
+        return mFetched.size();
+    }
+
+    /**
+     * Waits like a Play Services call would, which the interrupt of a shut down loader does not
+     * cut short
+     */
+    private static void awaitUninterruptibly(CountDownLatch gate) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                gate.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
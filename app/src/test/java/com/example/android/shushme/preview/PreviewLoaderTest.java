@@ -0,0 +1,193 @@
+package com.example.android.shushme.preview;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.shushme.BuildConfig;
+import com.example.android.shushme.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads previews from {@link FakePreviewFetcher} to check that cards share loads, that a
+ * recycled card drops its queued load and that nothing is shown once the loader is released
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PreviewLoaderTest {
+
+    private static final int SIZE = 64;
+    private static final long TIMEOUT_MILLIS = 5000;
+    // Long enough for a dropped load to have run if it was not dropped
+    private static final long SETTLE_MILLIS = 200;
+
+    private FakePreviewFetcher mFetcher;
+    private PreviewLoader mLoader;
+
+    @Before
+    public void setUp() {
+        // Completions posted by the loader threads run on the test thread only
+        ShadowLooper.pauseMainLooper();
+        mFetcher = new FakePreviewFetcher(0, Collections.singleton("missing"));
+        mLoader = new PreviewLoader(RuntimeEnvironment.application, mFetcher, SIZE,
+                R.drawable.ic_place_accent_24dp);
+    }
+
+    @After
+    public void tearDown() {
+        mLoader.release();
+        mFetcher.resume();
+    }
+
+    @Test
+    public void cardsShowingTheSamePlaceShareOneLoad() throws InterruptedException {
+        ImageView first = new ImageView(RuntimeEnvironment.application);
+        TextView firstAttribution = new TextView(RuntimeEnvironment.application);
+        ImageView second = new ImageView(RuntimeEnvironment.application);
+        TextView secondAttribution = new TextView(RuntimeEnvironment.application);
+
+        mFetcher.hold();
+        mLoader.load("home", first, firstAttribution);
+        mLoader.load("home", second, secondAttribution);
+        assertFalse(isShown(first));
+        assertEquals(View.GONE, firstAttribution.getVisibility());
+        mFetcher.resume();
+
+        awaitShown(first, second);
+        assertEquals(Arrays.asList("home"), mFetcher.getFetched());
+        assertEquals(View.VISIBLE, firstAttribution.getVisibility());
+        assertEquals(FakePreviewFetcher.ATTRIBUTIONS, firstAttribution.getText().toString());
+        assertEquals(FakePreviewFetcher.ATTRIBUTIONS, secondAttribution.getText().toString());
+    }
+
+    @Test
+    public void loadedPreviewIsShownFromMemory() throws InterruptedException {
+        ImageView first = new ImageView(RuntimeEnvironment.application);
+        mLoader.load("home", first, new TextView(RuntimeEnvironment.application));
+        awaitShown(first);
+
+        ImageView second = new ImageView(RuntimeEnvironment.application);
+        TextView secondAttribution = new TextView(RuntimeEnvironment.application);
+        mLoader.load("home", second, secondAttribution);
+        assertTrue(isShown(second));
+        assertEquals(View.VISIBLE, secondAttribution.getVisibility());
+        assertEquals(1, mFetcher.getFetchCount());
+    }
+
+    @Test
+    public void recycledCardDropsItsQueuedLoad() throws InterruptedException {
+        ImageView[] views = new ImageView[4];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = new ImageView(RuntimeEnvironment.application);
+        }
+        // Both loader threads wait on the first two, the others stay queued
+        mFetcher.hold();
+        for (int i = 0; i < views.length; i++) {
+            mLoader.load("place-" + i, views[i], new TextView(RuntimeEnvironment.application));
+        }
+        mLoader.cancel(views[2]);
+        mFetcher.resume();
+
+        awaitShown(views[0], views[1], views[3]);
+        Thread.sleep(SETTLE_MILLIS);
+        ShadowLooper.runUiThreadTasks();
+        assertFalse(mFetcher.getFetched().contains("place-2"));
+        assertFalse(isShown(views[2]));
+    }
+
+    @Test
+    public void placeWithoutPreviewIsFetchedOnce() throws InterruptedException {
+        ImageView first = new ImageView(RuntimeEnvironment.application);
+        TextView firstAttribution = new TextView(RuntimeEnvironment.application);
+        mLoader.load("missing", first, firstAttribution);
+        awaitFetches(1);
+        Thread.sleep(SETTLE_MILLIS);
+        ShadowLooper.runUiThreadTasks();
+
+        ImageView second = new ImageView(RuntimeEnvironment.application);
+        mLoader.load("missing", second, new TextView(RuntimeEnvironment.application));
+        Thread.sleep(SETTLE_MILLIS);
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(1, mFetcher.getFetchCount());
+        assertFalse(isShown(first));
+        assertFalse(isShown(second));
+        assertEquals(View.GONE, firstAttribution.getVisibility());
+    }
+
+    @Test
+    public void loadFinishingAfterReleaseIsDropped() throws InterruptedException {
+        ImageView view = new ImageView(RuntimeEnvironment.application);
+        TextView attribution = new TextView(RuntimeEnvironment.application);
+        mFetcher.hold();
+        mLoader.load("home", view, attribution);
+        mLoader.release();
+        // The running fetch ignores the interrupt and completes anyway
+        mFetcher.resume();
+
+        awaitFetches(1);
+        Thread.sleep(SETTLE_MILLIS);
+        ShadowLooper.runUiThreadTasks();
+        assertFalse(isShown(view));
+        assertEquals(View.GONE, attribution.getVisibility());
+    }
+
+    private static boolean isShown(ImageView view) {
+        return view.getScaleType() == ImageView.ScaleType.CENTER_CROP;
+    }
+
+    /**
+     * Runs the completions posted to the main thread until all the views show their preview
+     */
+    private static void awaitShown(ImageView... views) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            ShadowLooper.runUiThreadTasks();
+            boolean shown = true;
+            for (ImageView view : views) {
+                shown &= isShown(view);
+            }
+            if (shown) return;
+            assertTrue("Previews not shown in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitFetches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFetcher.getFetchCount() < count) {
+            assertTrue("Previews not fetched in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.shushme.BuildConfig;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the throughput and latency of the place provider at 1k, 10k and 100k rows, on the
+ * JVM through Robolectric and its native SQLite.
+ * <p>
+ * Each size fills the table with one bulk insert, then times single inserts, queries by Place ID,
+ * updates by _id, deletions by _id as the app makes them, which only turn the row into a
+ * tombstone, and deletions by _id as the sync engine makes them, which remove the row. The bulk
+ * insert rate and the p95 latencies are checked against the measured values in
+ * provider_baselines.properties, with some tolerance for the noise of shared build machines. The
+ * results are logged in the same format so that the baselines can be updated from a run.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaceProviderThroughputTest {
+
+    public static final String TAG = PlaceProviderThroughputTest.class.getSimpleName();
+    // Timed operations per kind and size
+    private static final int SAMPLES = 500;
+    // Untimed operations per kind run first, so that the JIT has compiled the code paths
+    private static final int WARM_UP = 2000;
+    // How much worse than the baseline a result may be before the test fails
+    private static final double TOLERANCE = 1.5;
+    private static final String BASELINES = "/provider_baselines.properties";
+
+    private PlaceContentProvider mProvider;
+    private Properties mBaselines;
+    private Random mRandom;
+
+    @Before
+    public void setUp() throws IOException {
+        mProvider = Robolectric.setupContentProvider(PlaceContentProvider.class);
+        mBaselines = new Properties();
+        InputStream in = getClass().getResourceAsStream(BASELINES);
+        assertNotNull("Missing " + BASELINES, in);
+        try {
+            mBaselines.load(in);
+        } finally {
+            in.close();
+        }
+        // The same rows are touched on every run
+        mRandom = new Random(42);
+    }
+
+    @Test
+    public void throughputAt1k() {
+        measure(1000);
+    }
+
+    @Test
+    public void throughputAt10k() {
+        measure(10000);
+    }
+
+    @Test
+    public void throughputAt100k() {
+        measure(100000);
+    }
+
+    private void measure(int rows) {
+        List<String> failures = new ArrayList<>();
+        // _id of the first row of the table being measured
+        long firstId = warmUp() + 1;
+
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = placeValues(placeId(i), i);
+        }
+        long start = System.nanoTime();
+        assertEquals(rows, mProvider.bulkInsert(PlaceEntry.CONTENT_URI, values));
+        double rowsPerSecond = rows * 1e9 / (System.nanoTime() - start);
+        report(failures, "bulkInsert", rows, "rowsPerSecond", rowsPerSecond, false);
+
+        long[] latencies = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            ContentValues value = placeValues(placeId(rows + i), rows + i);
+            start = System.nanoTime();
+            mProvider.insert(PlaceEntry.CONTENT_URI, value);
+            latencies[i] = System.nanoTime() - start;
+        }
+        reportLatencies(failures, "insert", rows, latencies);
+
+        for (int i = 0; i < SAMPLES; i++) {
+            String[] selectionArgs = new String[]{placeId(mRandom.nextInt(rows))};
+            start = System.nanoTime();
+            Cursor cursor = mProvider.query(PlaceEntry.CONTENT_URI, null,
+                    PlaceEntry.COLUMN_PLACE_ID + "=?", selectionArgs, null);
+            assertNotNull(cursor);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+            latencies[i] = System.nanoTime() - start;
+        }
+        reportLatencies(failures, "query", rows, latencies);
+
+        for (int i = 0; i < SAMPLES; i++) {
+            ContentValues value = new ContentValues();
+            value.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed " + i);
+            Uri uri = ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, firstId + mRandom.nextInt(rows));
+            start = System.nanoTime();
+            assertEquals(1, mProvider.update(uri, value, null, null));
+            latencies[i] = System.nanoTime() - start;
+        }
+        reportLatencies(failures, "update", rows, latencies);
+
+        // Every deletion hits a different row, spread over the table, the app only marks the row
+        // as deleted until the sync engine uploads it
+        for (int i = 0; i < SAMPLES; i++) {
+            Uri uri = ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, firstId + (long) i * rows / SAMPLES);
+            start = System.nanoTime();
+            assertEquals(1, mProvider.delete(uri, null, null));
+            latencies[i] = System.nanoTime() - start;
+        }
+        reportLatencies(failures, "tombstone", rows, latencies);
+
+        // The sync engine removes the row, with its search index entry
+        for (int i = 0; i < SAMPLES; i++) {
+            Uri uri = ContentUris.withAppendedId(PlaceEntry.SYNC_ADAPTER_URI,
+                    firstId + 1 + (long) i * rows / SAMPLES);
+            start = System.nanoTime();
+            assertEquals(1, mProvider.delete(uri, null, null));
+            latencies[i] = System.nanoTime() - start;
+        }
+        reportLatencies(failures, "delete", rows, latencies);
+
+        assertTrue("Regressed past the baselines:\n" + failures, failures.isEmpty());
+    }
+
+    /**
+     * Runs every measured operation on rows of their own, then removes the rows
+     *
+     * @return The _id of the last row inserted
+     */
+    private long warmUp() {
+        ContentValues[] values = new ContentValues[WARM_UP];
+        for (int i = 0; i < WARM_UP; i++) {
+            values[i] = placeValues("warm-up-" + i, i);
+        }
+        mProvider.bulkInsert(PlaceEntry.CONTENT_URI, values);
+        long lastId = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            lastId = ContentUris.parseId(mProvider.insert(PlaceEntry.CONTENT_URI,
+                    placeValues("warm-up-" + (WARM_UP + i), i)));
+            Cursor cursor = mProvider.query(PlaceEntry.CONTENT_URI, null,
+                    PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{"warm-up-" + i}, null);
+            assertNotNull(cursor);
+            cursor.moveToFirst();
+            cursor.close();
+            ContentValues value = new ContentValues();
+            value.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed " + i);
+            Uri uri = ContentUris.withAppendedId(PlaceEntry.CONTENT_URI, lastId);
+            mProvider.update(uri, value, null, null);
+            mProvider.delete(uri, null, null);
+        }
+        mProvider.delete(PlaceEntry.SYNC_ADAPTER_URI, null, null);
+        return lastId;
+    }
+
+    private void reportLatencies(List<String> failures, String operation, int rows, long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        report(failures, operation, rows, "p50Micros", percentile(sorted, 50), null);
+        report(failures, operation, rows, "p95Micros", percentile(sorted, 95), true);
+        report(failures, operation, rows, "p99Micros", percentile(sorted, 99), null);
+    }
+
+    /**
+     * Logs a result and checks it against its baseline
+     *
+     * @param lowerIsBetter true for latencies, false for rates, null to only log the result
+     */
+    private void report(List<String> failures, String operation, int rows, String metric,
+                        double value, Boolean lowerIsBetter) {
+        String key = String.format(Locale.US, "%s.%d.%s", operation, rows, metric);
+        Log.i(TAG, String.format(Locale.US, "%s=%.1f", key, value));
+        if (lowerIsBetter == null) return;
+        String baseline = mBaselines.getProperty(key);
+        if (baseline == null) {
+            failures.add(String.format(Locale.US, "%s: %.1f without a baseline", key, value));
+            return;
+        }
+        double limit = Double.parseDouble(baseline);
+        boolean regressed = lowerIsBetter ? value > limit * TOLERANCE : value < limit / TOLERANCE;
+        if (regressed) {
+            failures.add(String.format(Locale.US, "%s: %.1f against a baseline of %.1f", key, value, limit));
+        }
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    private static String placeId(int i) {
+        return String.format(Locale.US, "place-%07d", i);
+    }
+
+    private static ContentValues placeValues(String placeId, int i) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_ID, placeId);
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, "Place " + i);
+        values.put(PlaceEntry.COLUMN_PLACE_ADDRESS, i + " Main Street");
+        values.put(PlaceEntry.COLUMN_PLACE_LATITUDE, 37 + (i % 1000) / 1000.0);
+        values.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, -122 + (i / 1000) / 1000.0);
+        return values;
+    }
+}
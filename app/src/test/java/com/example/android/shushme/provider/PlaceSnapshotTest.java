@@ -0,0 +1,202 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import com.example.android.shushme.BuildConfig;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Exports the places to a snapshot and imports it back, to check that saved places are updated
+ * in place, that schedules round trip, that version 1 snapshots are still read and that corrupt
+ * snapshots are rejected
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaceSnapshotTest {
+
+    private ContentResolver mResolver;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Robolectric.setupContentProvider(PlaceContentProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mFile = File.createTempFile("places", ".snapshot");
+        mFile.deleteOnExit();
+    }
+
+    @Test
+    public void importKeepsTheRowAndScheduleOfSavedPlaces() throws IOException {
+        long id = insert("home", "Home", 37.4219999, -122.0840575);
+        ContentValues schedule = new ContentValues();
+        schedule.put(PlaceEntry.COLUMN_SCHEDULE_START, 22 * 60);
+        schedule.put(PlaceEntry.COLUMN_SCHEDULE_END, 7 * 60);
+        mResolver.update(PlaceEntry.CONTENT_URI, schedule, null, null);
+        assertEquals(1, PlaceSnapshot.exportTo(mResolver, mFile));
+
+        ContentValues rename = new ContentValues();
+        rename.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed");
+        mResolver.update(PlaceEntry.CONTENT_URI, rename, null, null);
+        assertEquals(1, PlaceSnapshot.importFrom(mResolver, mFile));
+
+        ContentValues place = read("home");
+        assertEquals(id, (long) place.getAsLong(PlaceEntry._ID));
+        assertEquals("Home", place.getAsString(PlaceEntry.COLUMN_PLACE_NAME));
+        assertEquals(22 * 60, (int) place.getAsInteger(PlaceEntry.COLUMN_SCHEDULE_START));
+        assertEquals(7 * 60, (int) place.getAsInteger(PlaceEntry.COLUMN_SCHEDULE_END));
+    }
+
+    @Test
+    public void importRestoresTheSchedule() throws IOException {
+        insert("home", "Home", 37.4219999, -122.0840575);
+        ContentValues schedule = new ContentValues();
+        schedule.put(PlaceEntry.COLUMN_SCHEDULE_START, 22 * 60);
+        schedule.put(PlaceEntry.COLUMN_SCHEDULE_END, 7 * 60);
+        mResolver.update(PlaceEntry.CONTENT_URI, schedule, null, null);
+        PlaceSnapshot.exportTo(mResolver, mFile);
+
+        schedule.putNull(PlaceEntry.COLUMN_SCHEDULE_START);
+        schedule.putNull(PlaceEntry.COLUMN_SCHEDULE_END);
+        mResolver.update(PlaceEntry.CONTENT_URI, schedule, null, null);
+        assertEquals(1, PlaceSnapshot.importFrom(mResolver, mFile));
+
+        ContentValues place = read("home");
+        assertEquals(22 * 60, (int) place.getAsInteger(PlaceEntry.COLUMN_SCHEDULE_START));
+        assertEquals(7 * 60, (int) place.getAsInteger(PlaceEntry.COLUMN_SCHEDULE_END));
+    }
+
+    @Test
+    public void versionOneImportKeepsTheSchedule() throws IOException {
+        insert("home", "Old name", 37.4219999, -122.0840575);
+        ContentValues schedule = new ContentValues();
+        schedule.put(PlaceEntry.COLUMN_SCHEDULE_START, 22 * 60);
+        schedule.put(PlaceEntry.COLUMN_SCHEDULE_END, 7 * 60);
+        mResolver.update(PlaceEntry.CONTENT_URI, schedule, null, null);
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            // Strings "home" and "Home", then one place with only a name
+            out.write(new byte[]{'S', 'H', 'M', 'E', 1,
+                    2, 4, 'h', 'o', 'm', 'e', 4, 'H', 'o', 'm', 'e',
+                    1, 1, 0, 1});
+        } finally {
+            out.close();
+        }
+        assertEquals(1, PlaceSnapshot.importFrom(mResolver, mFile));
+
+        ContentValues place = read("home");
+        assertEquals("Home", place.getAsString(PlaceEntry.COLUMN_PLACE_NAME));
+        assertEquals(22 * 60, (int) place.getAsInteger(PlaceEntry.COLUMN_SCHEDULE_START));
+        assertEquals(7 * 60, (int) place.getAsInteger(PlaceEntry.COLUMN_SCHEDULE_END));
+    }
+
+    @Test
+    public void importingTwiceChangesNothing() throws IOException {
+        insert("home", "Home", 37.4219999, -122.0840575);
+        insert("work", "Work", 37.7749295, -122.4194155);
+        PlaceSnapshot.exportTo(mResolver, mFile);
+        mResolver.delete(PlaceEntry.SYNC_ADAPTER_URI, PlaceEntry.COLUMN_PLACE_ID + "=?",
+                new String[]{"work"});
+
+        assertEquals(1, PlaceSnapshot.importFrom(mResolver, mFile));
+        assertEquals(0, PlaceSnapshot.importFrom(mResolver, mFile));
+        assertEquals(2, count());
+    }
+
+    @Test
+    public void importBringsBackDeletedPlaces() throws IOException {
+        insert("home", "Home", 37.4219999, -122.0840575);
+        PlaceSnapshot.exportTo(mResolver, mFile);
+        mResolver.delete(PlaceEntry.CONTENT_URI, null, null);
+        assertEquals(0, count());
+
+        assertEquals(1, PlaceSnapshot.importFrom(mResolver, mFile));
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void corruptCountIsRejected() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            // Magic, version 1, then a string count of 2^28 with nothing after it
+            out.write(new byte[]{'S', 'H', 'M', 'E', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                    (byte) 0x80, 0x01});
+        } finally {
+            out.close();
+        }
+        try {
+            PlaceSnapshot.importFrom(mResolver, mFile);
+            fail("Imported a corrupt snapshot");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, count());
+    }
+
+    private long insert(String placeId, String name, double latitude, double longitude) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_ID, placeId);
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, name);
+        values.put(PlaceEntry.COLUMN_PLACE_LATITUDE, latitude);
+        values.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, longitude);
+        return Long.parseLong(mResolver.insert(PlaceEntry.CONTENT_URI, values).getLastPathSegment());
+    }
+
+    private ContentValues read(String placeId) {
+        Cursor data = mResolver.query(PlaceEntry.CONTENT_URI, null,
+                PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{placeId}, null);
+        assertNotNull(data);
+        try {
+            assertEquals(1, data.getCount());
+            data.moveToFirst();
+            ContentValues values = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(data, values);
+            return values;
+        } finally {
+            data.close();
+        }
+    }
+
+    private int count() {
+        Cursor data = mResolver.query(PlaceEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(data);
+        try {
+            return data.getCount();
+        } finally {
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.os.Handler;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline place search over a fixed list of places, answering after a simulated latency.
+ * Matches places whose name or address contains every word of the query, those inside the
+ * location bias first, and counts the requests it served, delivered and cancelled so that
+ * caching and cancellation can be checked.
+ */
+public class FakePlaceSearchBackend implements PlaceSearchBackend {
+
+    private final List<PlaceDetails> mPlaces;
+    private final Handler mHandler;
+    private final long mLatencyMillis;
+    private int mAutocompleteCount;
+    private int mFetchCount;
+    private int mDeliveredCount;
+    private int mCancelledCount;
+
+    /**
+     * @param places        The places to search
+     * @param handler       The handler to deliver the results on
+     * @param latencyMillis The simulated response time
+     */
+    public FakePlaceSearchBackend(List<PlaceDetails> places, Handler handler, long latencyMillis) {
+        mPlaces = new ArrayList<>(places);
+        mHandler = handler;
+        mLatencyMillis = latencyMillis;
+    }
+
+    @Override
+    public Request autocomplete(String query, LatLngBounds bias,
+                                final Callback<List<Prediction>> callback) {
+        mAutocompleteCount++;
+        String[] words = query.toLowerCase(Locale.getDefault()).trim().split("\\s+");
+        final List<Prediction> inside = new ArrayList<>();
+        List<Prediction> outside = new ArrayList<>();
+        for (PlaceDetails place : mPlaces) {
+            String text = (place.name + " " + place.address).toLowerCase(Locale.getDefault());
+            boolean matches = true;
+            for (String word : words) {
+                if (!text.contains(word)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (!matches) continue;
+            Prediction prediction = new Prediction(place.placeId, place.name, place.address);
+            if (bias == null || bias.contains(new LatLng(place.latitude, place.longitude))) {
+                inside.add(prediction);
+            } else {
+                outside.add(prediction);
+            }
+        }
+        inside.addAll(outside);
+        return deliver(callback, inside);
+    }
+
+    @Override
+    public Request fetchPlaces(List<String> placeIds, Callback<List<PlaceDetails>> callback) {
+        mFetchCount++;
+        List<PlaceDetails> details = new ArrayList<>();
+        for (PlaceDetails place : mPlaces) {
+            if (placeIds.contains(place.placeId)) details.add(place);
+        }
+        return deliver(callback, details);
+    }
+
+    public int getAutocompleteCount() {
+        return mAutocompleteCount;
+    }
+
+    public int getFetchCount() {
+        return mFetchCount;
+    }
+
+    /**
+     * @return The number of results handed to a callback
+     */
+    public int getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * @return The number of requests cancelled before their result was delivered
+     */
+    public int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    private <T> Request deliver(final Callback<T> callback, final T result) {
+        final boolean[] delivered = new boolean[1];
+        final Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                delivered[0] = true;
+                mDeliveredCount++;
+                callback.onResult(result);
+            }
+        };
+        mHandler.postDelayed(delivery, mLatencyMillis);
+        return new Request() {
+            @Override
+            public void cancel() {
+                if (delivered[0]) return;
+                mHandler.removeCallbacks(delivery);
+                mCancelledCount++;
+            }
+        };
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.app.Activity;
+import android.database.Cursor;
+import android.os.Handler;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+
+import com.example.android.shushme.BuildConfig;
+import com.example.android.shushme.R;
+import com.example.android.shushme.provider.PlaceContentProvider;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Types into the place search screen, selects predictions and adds them, with the Places API
+ * replaced by {@link FakePlaceSearchBackend} through {@link PlaceSearchActivity#createBackend}
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaceSearchActivityTest {
+
+    private static final long LATENCY_MILLIS = 100;
+
+    /**
+     * Searches the fake backend instead of the Places API
+     */
+    public static class TestPlaceSearchActivity extends PlaceSearchActivity {
+
+        FakePlaceSearchBackend backend;
+
+        @Override
+        protected PlaceSearchBackend createBackend() {
+            backend = new FakePlaceSearchBackend(Arrays.asList(
+                    new PlaceSearchBackend.PlaceDetails("cafe-1", "Cafe Mocha", "1 Main Street", 37.40, -122.10),
+                    new PlaceSearchBackend.PlaceDetails("cafe-2", "Cafe Latte", "2 Main Street", 37.41, -122.11),
+                    new PlaceSearchBackend.PlaceDetails("library", "City Library", "3 Oak Avenue", 37.42, -122.12)),
+                    new Handler(), LATENCY_MILLIS);
+            return backend;
+        }
+    }
+
+    private TestPlaceSearchActivity mActivity;
+    private RecyclerView mRecyclerView;
+    private Button mAddButton;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PlaceContentProvider.class);
+        mActivity = Robolectric.setupActivity(TestPlaceSearchActivity.class);
+        mRecyclerView = (RecyclerView) mActivity.findViewById(R.id.predictions_recycler_view);
+        mAddButton = (Button) mActivity.findViewById(R.id.add_places_button);
+    }
+
+    @Test
+    public void typingShowsThePredictionsOfTheBackend() {
+        type("cafe");
+        assertEquals(1, mActivity.backend.getAutocompleteCount());
+        assertEquals(2, mRecyclerView.getAdapter().getItemCount());
+        assertFalse(mAddButton.isEnabled());
+    }
+
+    @Test
+    public void selectedPlacesAreAddedInOneRequest() {
+        type("cafe");
+        select(0);
+        select(1);
+        assertTrue(mAddButton.isEnabled());
+
+        mAddButton.performClick();
+        ShadowLooper.idleMainLooper(LATENCY_MILLIS);
+        assertEquals(1, mActivity.backend.getFetchCount());
+        assertEquals(Arrays.asList("cafe-1", "cafe-2"), savedPlaceIds());
+        assertTrue(mActivity.isFinishing());
+        assertEquals(Activity.RESULT_OK, shadowOf(mActivity).getResultCode());
+    }
+
+    @Test
+    public void selectionSurvivesANewQuery() {
+        type("cafe");
+        select(0);
+        type("library");
+        select(0);
+
+        mAddButton.performClick();
+        ShadowLooper.idleMainLooper(LATENCY_MILLIS);
+        assertEquals(Arrays.asList("cafe-1", "library"), savedPlaceIds());
+    }
+
+    @Test
+    public void clickingASelectedPlaceAgainDeselectsIt() {
+        type("cafe");
+        select(0);
+        select(0);
+        assertFalse(mAddButton.isEnabled());
+    }
+
+    private void type(String query) {
+        EditText queryEditText = (EditText) mActivity.findViewById(R.id.query_edit_text);
+        queryEditText.setText(query);
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS + LATENCY_MILLIS);
+        // Lay the predictions out, nothing draws them under Robolectric
+        mRecyclerView.measure(View.MeasureSpec.makeMeasureSpec(480, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY));
+        mRecyclerView.layout(0, 0, 480, 800);
+    }
+
+    private void select(int position) {
+        RecyclerView.ViewHolder holder = mRecyclerView.findViewHolderForAdapterPosition(position);
+        assertNotNull(holder);
+        holder.itemView.performClick();
+    }
+
+    private List<String> savedPlaceIds() {
+        Cursor data = mActivity.getContentResolver().query(PlaceEntry.CONTENT_URI,
+                new String[]{PlaceEntry.COLUMN_PLACE_ID}, null, null, PlaceEntry.COLUMN_PLACE_ID);
+        assertNotNull(data);
+        List<String> placeIds = new ArrayList<>();
+        try {
+            while (data.moveToNext()) {
+                placeIds.add(data.getString(0));
+            }
+        } finally {
+            data.close();
+        }
+        return placeIds;
+    }
+}
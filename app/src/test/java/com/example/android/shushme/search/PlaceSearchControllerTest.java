@@ -0,0 +1,173 @@
+package com.example.android.shushme.search;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.os.Handler;
+
+import com.example.android.shushme.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the debouncing, caching and cancellation of the place search against
+ * {@link FakePlaceSearchBackend}, on the main looper of Robolectric
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaceSearchControllerTest {
+
+    private static final long LATENCY_MILLIS = 100;
+
+    private FakePlaceSearchBackend mBackend;
+    private PlaceSearchController mController;
+    private final List<String> mQueries = new ArrayList<>();
+    private final List<List<PlaceSearchBackend.Prediction>> mPredictions = new ArrayList<>();
+    private final List<Boolean> mInterim = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        List<PlaceSearchBackend.PlaceDetails> places = Arrays.asList(
+                new PlaceSearchBackend.PlaceDetails("cafe-1", "Cafe Mocha", "1 Main Street", 37.40, -122.10),
+                new PlaceSearchBackend.PlaceDetails("cafe-2", "Cafe Latte", "2 Main Street", 37.41, -122.11),
+                new PlaceSearchBackend.PlaceDetails("library", "City Library", "3 Oak Avenue", 37.42, -122.12));
+        Handler handler = new Handler();
+        mBackend = new FakePlaceSearchBackend(places, handler, LATENCY_MILLIS);
+        mController = new PlaceSearchController(mBackend, handler,
+                new PlaceSearchController.Listener() {
+                    @Override
+                    public void onPredictions(String query,
+                                              List<PlaceSearchBackend.Prediction> predictions,
+                                              boolean interim) {
+                        mQueries.add(query);
+                        mPredictions.add(predictions);
+                        mInterim.add(interim);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mController.release();
+    }
+
+    @Test
+    public void keystrokesWithinTheDebounceMakeOneRequest() {
+        mController.onQueryChanged("c");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS / 2);
+        mController.onQueryChanged("ca");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS / 2);
+        mController.onQueryChanged("caf");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS - 1);
+        assertEquals(0, mBackend.getAutocompleteCount());
+
+        ShadowLooper.idleMainLooper(1 + LATENCY_MILLIS);
+        assertEquals(1, mBackend.getAutocompleteCount());
+        assertEquals(Arrays.asList("caf"), mQueries);
+        assertEquals(2, mPredictions.get(0).size());
+        assertFalse(mInterim.get(0));
+    }
+
+    @Test
+    public void whitespaceAndCaseChangesDoNotSearchAgain() {
+        search("cafe");
+        mController.onQueryChanged("  Cafe ");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS + LATENCY_MILLIS);
+        assertEquals(1, mBackend.getAutocompleteCount());
+        assertEquals(1, mQueries.size());
+    }
+
+    @Test
+    public void repeatedQueryIsServedFromTheCache() {
+        search("cafe");
+        search("library");
+        mController.onQueryChanged("cafe");
+        assertEquals(2, mBackend.getAutocompleteCount());
+        assertEquals("cafe", mQueries.get(mQueries.size() - 1));
+        assertEquals(2, mPredictions.get(mPredictions.size() - 1).size());
+        assertFalse(mInterim.get(mInterim.size() - 1));
+    }
+
+    @Test
+    public void longerQueryShowsTheCachedPrefixWhileSearching() {
+        search("cafe");
+        mController.onQueryChanged("cafe mo");
+        assertEquals("cafe mo", mQueries.get(mQueries.size() - 1));
+        assertTrue(mInterim.get(mInterim.size() - 1));
+        assertEquals("cafe-1", mPredictions.get(mPredictions.size() - 1).get(0).placeId);
+        assertEquals(1, mPredictions.get(mPredictions.size() - 1).size());
+
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS + LATENCY_MILLIS);
+        assertEquals(2, mBackend.getAutocompleteCount());
+        assertFalse(mInterim.get(mInterim.size() - 1));
+    }
+
+    @Test
+    public void outdatedRequestIsCancelled() {
+        mController.onQueryChanged("cafe");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS);
+        assertEquals(1, mBackend.getAutocompleteCount());
+
+        // The answer for "cafe" is still in flight
+        mController.onQueryChanged("library");
+        assertEquals(1, mBackend.getCancelledCount());
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS + LATENCY_MILLIS);
+        assertEquals(2, mBackend.getAutocompleteCount());
+        assertEquals(1, mBackend.getDeliveredCount());
+        assertEquals(Arrays.asList("library"), mQueries);
+        assertEquals("library", mPredictions.get(0).get(0).placeId);
+    }
+
+    @Test
+    public void clearingTheQueryCancelsAndEmptiesThePredictions() {
+        mController.onQueryChanged("cafe");
+        mController.onQueryChanged("");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS + LATENCY_MILLIS);
+        assertEquals(0, mBackend.getAutocompleteCount());
+        assertEquals(Arrays.asList(""), mQueries);
+        assertTrue(mPredictions.get(0).isEmpty());
+    }
+
+    @Test
+    public void releaseDropsPendingAndInFlightSearches() {
+        mController.onQueryChanged("cafe");
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS);
+        mController.release();
+        ShadowLooper.idleMainLooper(LATENCY_MILLIS);
+        assertEquals(1, mBackend.getCancelledCount());
+        assertEquals(0, mBackend.getDeliveredCount());
+        assertTrue(mQueries.isEmpty());
+    }
+
+    private void search(String query) {
+        mController.onQueryChanged(query);
+        ShadowLooper.idleMainLooper(PlaceSearchController.DEBOUNCE_MILLIS + LATENCY_MILLIS);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A sync server kept in memory and reached without a network, to stand in for the real one
+ * when testing the sync engine or syncing several engines with each other.
+ * <p>
+ * Every accepted change gets the next version number, and the sync token is the last version
+ * the client has seen. Tombstones are kept so that deletions reach every client.
+ */
+public class LocalSyncServer implements SyncTransport {
+
+    private final int mPageSize;
+    private final Map<String, PlaceChange> mPlaces = new HashMap<>();
+    // Place ID of every row by its version, to page through the changes since a token
+    private final NavigableMap<Long, String> mPlaceIdsByVersion = new TreeMap<>();
+    private long mLastVersion;
+    private int mExchanges;
+
+    /**
+     * @param pageSize The most changes sent back in one response
+     */
+    public LocalSyncServer(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    @Override
+    public synchronized byte[] exchange(byte[] request) throws IOException {
+        mExchanges++;
+        SyncPayload payload = SyncPayload.decode(request);
+        long token = parseToken(payload.token);
+
+        // The server copy of rejected changes goes back regardless of the token, so that the
+        // client drops its change
+        Map<String, PlaceChange> response = new LinkedHashMap<>();
+        for (PlaceChange change : payload.changes) {
+            PlaceChange current = mPlaces.get(change.placeId);
+            PlaceChange winner = resolve(current, change);
+            if (winner == current) {
+                if (current != null) response.put(current.placeId, current);
+                continue;
+            }
+            if (current != null) mPlaceIdsByVersion.remove(current.version);
+            PlaceChange accepted = winner.withVersion(++mLastVersion);
+            mPlaces.put(accepted.placeId, accepted);
+            mPlaceIdsByVersion.put(accepted.version, accepted.placeId);
+        }
+
+        long newToken = token;
+        int count = 0;
+        for (Map.Entry<Long, String> entry : mPlaceIdsByVersion.tailMap(token, false).entrySet()) {
+            if (count == mPageSize) break;
+            response.put(entry.getValue(), mPlaces.get(entry.getValue()));
+            newToken = entry.getKey();
+            count++;
+        }
+        boolean more = mPlaceIdsByVersion.higherKey(newToken) != null;
+        return new SyncPayload(String.valueOf(newToken), new ArrayList<>(response.values()), more)
+                .encode();
+    }
+
+    /**
+     * Picks the change to keep when a client uploads a change to a place
+     * <ul>
+     * <li>A change based on the current version, or to a new place, is taken as is.</li>
+     * <li>Otherwise the place changed since the client last saw it. An edit wins over a deletion
+     * either way, so that a quiet zone is never lost to a conflict. Between two edits the one
+     * that reached the server first wins.</li>
+     * </ul>
+     *
+     * @param current  The server copy of the place, null if there is none
+     * @param incoming The uploaded change
+     * @return Either of the two
+     */
+    static PlaceChange resolve(PlaceChange current, PlaceChange incoming) {
+        if (current == null || current.version == incoming.version) return incoming;
+        if (current.deleted && !incoming.deleted) return incoming;
+        return current;
+    }
+
+    /**
+     * @return The number of requests handled, to check how many round trips a sync took
+     */
+    public synchronized int getExchanges() {
+        return mExchanges;
+    }
+
+    /**
+     * @return The server copies of all the places, deleted ones included
+     */
+    public synchronized List<PlaceChange> getPlaces() {
+        return new ArrayList<>(mPlaces.values());
+    }
+
+    private static long parseToken(String token) throws IOException {
+        if (token == null) return 0;
+        try {
+            return Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad sync token " + token);
+        }
+    }
+}
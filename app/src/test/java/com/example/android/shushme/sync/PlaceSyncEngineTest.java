@@ -0,0 +1,234 @@
+package com.example.android.shushme.sync;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.shushme.BuildConfig;
+import com.example.android.shushme.provider.PlaceContentProvider;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs the places provider with a {@link LocalSyncServer}, while another client changes the
+ * same places on the server, to check uploads, downloads, tombstones and conflict resolution
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaceSyncEngineTest {
+
+    private static final int PAGE_SIZE = 2;
+
+    private ContentResolver mResolver;
+    private LocalSyncServer mServer;
+    private PlaceSyncEngine mEngine;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PlaceContentProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new LocalSyncServer(PAGE_SIZE);
+        mEngine = new PlaceSyncEngine(RuntimeEnvironment.application, mServer);
+    }
+
+    @Test
+    public void localPlaceIsUploaded() throws IOException {
+        insertLocal("home", "Home");
+        assertEquals(1, mEngine.sync());
+
+        PlaceChange server = findOnServer("home");
+        assertNotNull(server);
+        assertEquals("Home", server.name);
+        assertEquals(1, server.version);
+        ContentValues local = readLocal("home");
+        assertEquals(0, (long) local.getAsLong(PlaceEntry.COLUMN_DIRTY));
+        assertEquals(1, (long) local.getAsLong(PlaceEntry.COLUMN_VERSION));
+    }
+
+    @Test
+    public void remotePlacesAreDownloadedPageByPage() throws IOException {
+        List<PlaceChange> changes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            changes.add(change("place-" + i, "Place " + i, false, 0));
+        }
+        uploadFromOtherClient(changes);
+        int exchanges = mServer.getExchanges();
+
+        assertEquals(5, mEngine.sync());
+        // Three pages of at most two changes
+        assertEquals(3, mServer.getExchanges() - exchanges);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Place " + i, readLocal("place-" + i).getAsString(PlaceEntry.COLUMN_PLACE_NAME));
+        }
+        // Nothing changed since, a second sync takes one round trip and applies nothing
+        assertEquals(0, mEngine.sync());
+    }
+
+    @Test
+    public void localDeletionIsUploadedAsTombstone() throws IOException {
+        insertLocal("home", "Home");
+        mEngine.sync();
+
+        mResolver.delete(PlaceEntry.CONTENT_URI, PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{"home"});
+        // Hidden from the app, kept for the sync engine until uploaded
+        Cursor cursor = mResolver.query(PlaceEntry.CONTENT_URI, null,
+                PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{"home"}, null);
+        assertNotNull(cursor);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertEquals(1, (int) readLocal("home").getAsInteger(PlaceEntry.COLUMN_DELETED));
+
+        mEngine.sync();
+        assertTrue(findOnServer("home").deleted);
+        assertNull(readLocal("home"));
+    }
+
+    @Test
+    public void remoteDeletionRemovesTheLocalPlace() throws IOException {
+        insertLocal("home", "Home");
+        mEngine.sync();
+
+        uploadFromOtherClient(Arrays.asList(change("home", null, true, 1)));
+        mEngine.sync();
+        assertNull(readLocal("home"));
+    }
+
+    @Test
+    public void localEditWinsOverRemoteDeletion() throws IOException {
+        insertLocal("home", "Home");
+        mEngine.sync();
+
+        uploadFromOtherClient(Arrays.asList(change("home", null, true, 1)));
+        renameLocal("home", "Home, renamed");
+        mEngine.sync();
+
+        PlaceChange server = findOnServer("home");
+        assertFalse(server.deleted);
+        assertEquals("Home, renamed", server.name);
+        ContentValues local = readLocal("home");
+        assertEquals("Home, renamed", local.getAsString(PlaceEntry.COLUMN_PLACE_NAME));
+        assertEquals(0, (int) local.getAsInteger(PlaceEntry.COLUMN_DELETED));
+        assertEquals(server.version, (long) local.getAsLong(PlaceEntry.COLUMN_VERSION));
+    }
+
+    @Test
+    public void firstEditToReachTheServerWins() throws IOException {
+        insertLocal("home", "Home");
+        mEngine.sync();
+
+        uploadFromOtherClient(Arrays.asList(change("home", "Home, remote", false, 1)));
+        renameLocal("home", "Home, local");
+        mEngine.sync();
+
+        assertEquals("Home, remote", findOnServer("home").name);
+        ContentValues local = readLocal("home");
+        assertEquals("Home, remote", local.getAsString(PlaceEntry.COLUMN_PLACE_NAME));
+        assertEquals(0, (long) local.getAsLong(PlaceEntry.COLUMN_DIRTY));
+    }
+
+    @Test
+    public void resolveKeepsEditsOverDeletions() {
+        PlaceChange edit = change("home", "Home", false, 2);
+        PlaceChange tombstone = change("home", null, true, 2);
+        PlaceChange staleEdit = change("home", "Old home", false, 1);
+        PlaceChange staleTombstone = change("home", null, true, 1);
+
+        assertSame(edit, LocalSyncServer.resolve(null, edit));
+        assertSame(staleEdit, LocalSyncServer.resolve(tombstone, staleEdit));
+        assertSame(edit, LocalSyncServer.resolve(edit, staleTombstone));
+        assertSame(edit, LocalSyncServer.resolve(edit, staleEdit));
+        assertSame(tombstone, LocalSyncServer.resolve(edit, tombstone));
+    }
+
+    private void insertLocal(String placeId, String name) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_ID, placeId);
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, name);
+        values.put(PlaceEntry.COLUMN_PLACE_LATITUDE, 37.4);
+        values.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, -122.1);
+        mResolver.insert(PlaceEntry.CONTENT_URI, values);
+    }
+
+    private void renameLocal(String placeId, String name) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, name);
+        mResolver.update(PlaceEntry.CONTENT_URI, values,
+                PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{placeId});
+    }
+
+    /**
+     * @return The local row of the place, tombstones included, or null if there is none
+     */
+    private ContentValues readLocal(String placeId) {
+        Cursor cursor = mResolver.query(PlaceEntry.SYNC_ADAPTER_URI,
+                new String[]{PlaceEntry.COLUMN_PLACE_NAME, PlaceEntry.COLUMN_DELETED,
+                        PlaceEntry.COLUMN_VERSION, PlaceEntry.COLUMN_DIRTY},
+                PlaceEntry.COLUMN_PLACE_ID + "=?", new String[]{placeId}, null);
+        assertNotNull(cursor);
+        try {
+            if (!cursor.moveToFirst()) return null;
+            ContentValues values = new ContentValues();
+            values.put(PlaceEntry.COLUMN_PLACE_NAME, cursor.getString(0));
+            values.put(PlaceEntry.COLUMN_DELETED, cursor.getInt(1));
+            values.put(PlaceEntry.COLUMN_VERSION, cursor.getLong(2));
+            values.put(PlaceEntry.COLUMN_DIRTY, cursor.getLong(3));
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private PlaceChange findOnServer(String placeId) {
+        for (PlaceChange change : mServer.getPlaces()) {
+            if (change.placeId.equals(placeId)) return change;
+        }
+        return null;
+    }
+
+    /**
+     * Uploads changes the way another device would, based on the given versions
+     */
+    private void uploadFromOtherClient(List<PlaceChange> changes) throws IOException {
+        mServer.exchange(new SyncPayload(null, changes, false).encode());
+    }
+
+    private static PlaceChange change(String placeId, String name, boolean deleted, long version) {
+        return new PlaceChange(placeId, name, null, deleted ? null : 37.4, deleted ? null : -122.1,
+                null, null, deleted, version);
+    }
+}